@@ -0,0 +1,231 @@
+package canthonyl.datastructure.collection;
+
+import canthonyl.datastructure.collection.store.CellFormat;
+import canthonyl.datastructure.collection.store.CellStore;
+import canthonyl.datastructure.collection.store.HeapCellStore;
+
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static canthonyl.datastructure.collection.CoordSet.fromX;
+import static canthonyl.datastructure.collection.CoordSet.fromY;
+import static canthonyl.datastructure.collection.CoordSet.toX;
+import static canthonyl.datastructure.collection.CoordSet.toY;
+import static canthonyl.datastructure.collection.store.CellFormat.numCells;
+
+/**
+ * Immutable, compressed form of a {@link CoordSet}.  The cells, in row major order, are split into runs of empty cells,
+ * runs of full cells and runs of mixed cells, of which only the mixed cells are kept as words.  Coords are looked up
+ * by a binary search over the run starts, without decoding the cells.
+ */
+public class CompressedCoordSet {
+
+    private static final int MAGIC = 0x43535243; //"CRSC"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+
+    private static final byte EMPTY = 0;
+    private static final byte FULL = 1;
+    private static final byte LITERAL = 2;
+
+    private final int w;
+    private final int h;
+    private final int numCellsX;
+    private final int numCellsY;
+    private final int coordCount;
+
+    //run i covers cells [runStarts[i], runStarts[i+1]), literal runs take their words from literalStarts[i] onwards
+    private final int[] runStarts;
+    private final byte[] runTypes;
+    private final int[] literalStarts;
+    private final long[] literals;
+
+    private CompressedCoordSet(int w, int h, int coordCount, int[] runStarts, byte[] runTypes, long[] literals) {
+        this.w = w;
+        this.h = h;
+        this.numCellsX = numCells(w);
+        this.numCellsY = numCells(h);
+        this.coordCount = coordCount;
+        this.runStarts = runStarts;
+        this.runTypes = runTypes;
+        this.literals = literals;
+        this.literalStarts = new int[runStarts.length];
+        int literalIndex = 0;
+        for (int i = 0; i < runStarts.length; i++) {
+            literalStarts[i] = literalIndex;
+            if (runTypes[i] == LITERAL) {
+                literalIndex += runEnd(i) - runStarts[i];
+            }
+        }
+        if (literalIndex != literals.length) {
+            throw new IllegalArgumentException("Runs cover "+literalIndex+" mixed cells but "+literals.length+" were given");
+        }
+    }
+
+    public static CompressedCoordSet of(CoordSet set) {
+        int w = set.getWidth();
+        int h = set.getHeight();
+        CellStore cells = set.getCellStore();
+        if (cells.getNumCellsX() != numCells(w) || cells.getNumCellsY() != numCells(h)) {
+            throw new IllegalArgumentException("Only sets of 8x8 cells can be compressed");
+        }
+        int numCellsX = cells.getNumCellsX();
+        int totalCells = numCellsX * cells.getNumCellsY();
+
+        int[] runStarts = new int[16];
+        byte[] runTypes = new byte[16];
+        long[] literals = new long[16];
+        int runCount = 0;
+        int literalCount = 0;
+        for (int i = 0; i < totalCells; i++) {
+            int cellX = i % numCellsX;
+            int cellY = i / numCellsX;
+            long value = cells.get(cellX, cellY);
+            long fullMask = fullMask(w, h, cellX, cellY);
+            byte type = value == 0L ? EMPTY : value == fullMask ? FULL : LITERAL;
+            if (runCount == 0 || runTypes[runCount - 1] != type) {
+                if (runCount == runStarts.length) {
+                    runStarts = Arrays.copyOf(runStarts, runCount * 2);
+                    runTypes = Arrays.copyOf(runTypes, runCount * 2);
+                }
+                runStarts[runCount] = i;
+                runTypes[runCount] = type;
+                runCount++;
+            }
+            if (type == LITERAL) {
+                if (literalCount == literals.length) {
+                    literals = Arrays.copyOf(literals, literalCount * 2);
+                }
+                literals[literalCount++] = value;
+            }
+        }
+        return new CompressedCoordSet(w, h, set.count(), Arrays.copyOf(runStarts, runCount),
+                Arrays.copyOf(runTypes, runCount), Arrays.copyOf(literals, literalCount));
+    }
+
+    //bits of a cell that lie within the width and height of the set
+    private static long fullMask(int w, int h, int cellX, int cellY) {
+        long mask = -1L;
+        if (cellX == numCells(w) - 1) mask &= toX[(w - 1) % 8];
+        if (cellY == numCells(h) - 1) mask &= toY[(h - 1) % 8];
+        return mask;
+    }
+
+    private int runEnd(int run) {
+        return run + 1 < runStarts.length ? runStarts[run + 1] : numCellsX * numCellsY;
+    }
+
+    //index of the run containing the given cell index
+    private int runOf(int cellIndex) {
+        int found = Arrays.binarySearch(runStarts, cellIndex);
+        return found >= 0 ? found : -found - 2;
+    }
+
+    private long cell(int run, int cellIndex) {
+        switch (runTypes[run]) {
+            case FULL: return fullMask(w, h, cellIndex % numCellsX, cellIndex / numCellsX);
+            case LITERAL: return literals[literalStarts[run] + cellIndex - runStarts[run]];
+            default: return 0L;
+        }
+    }
+
+    public Integer getWidth() { return w; }
+    public Integer getHeight() { return h; }
+    public Integer count() { return coordCount; }
+
+    //number of runs and of mixed cells kept as words
+    public Integer getRunCount() { return runStarts.length; }
+    public Integer getLiteralCount() { return literals.length; }
+
+    public Boolean contains(Integer x, Integer y) {
+        if (x < 0 || y < 0 || x >= w || y >= h) {
+            return false;
+        }
+        int cellIndex = (y / 8) * numCellsX + x / 8;
+        return (cell(runOf(cellIndex), cellIndex) & 1L << (y % 8) * 8 + x % 8) != 0L;
+    }
+
+    //coords within the inclusive bound, visiting only the runs that overlap the bound's rows of cells
+    public CoordSet filter(Integer x1, Integer y1, Integer x2, Integer y2) {
+        CellStore result = new HeapCellStore(numCellsX, numCellsY);
+        int cellX1 = x1 / 8;
+        int cellX2 = x2 / 8;
+        for (int cellY = y1 / 8; cellY <= y2 / 8; cellY++) {
+            int from = cellY * numCellsX + cellX1;
+            int to = cellY * numCellsX + cellX2;
+            for (int run = runOf(from); run < runStarts.length && runStarts[run] <= to; run++) {
+                if (runTypes[run] == EMPTY) {
+                    continue;
+                }
+                for (int cellIndex = Math.max(from, runStarts[run]); cellIndex <= to && cellIndex < runEnd(run); cellIndex++) {
+                    int cellX = cellIndex % numCellsX;
+                    result.set(cellX, cellY, cell(run, cellIndex) & clip(cellX, cellY, x1, y1, x2, y2));
+                }
+            }
+        }
+        return new CoordSet(w, h, result);
+    }
+
+    private static long clip(int cellX, int cellY, int x1, int y1, int x2, int y2) {
+        int startX = Math.max(x1 - cellX * 8, 0);
+        int startY = Math.max(y1 - cellY * 8, 0);
+        int endX = Math.min(x2 - cellX * 8, 7);
+        int endY = Math.min(y2 - cellY * 8, 7);
+        return fromX[startX] & fromY[startY] & toX[endX] & toY[endY];
+    }
+
+    public CoordSet decode() {
+        return filter(0, 0, w - 1, h - 1);
+    }
+
+    //header, then run starts, run types and mixed cell words, all little endian
+    public int serializedSize() {
+        return HEADER_SIZE + runStarts.length * (Integer.BYTES + 1) + literals.length * Long.BYTES;
+    }
+
+    public void writeTo(ByteBuffer buffer) {
+        int size = serializedSize();
+        if (buffer.remaining() < size) {
+            throw new BufferOverflowException();
+        }
+        ByteBuffer out = CellFormat.littleEndian(buffer);
+        out.putInt(MAGIC).putInt(VERSION).putInt(w).putInt(h).putInt(coordCount)
+                .putInt(runStarts.length).putInt(literals.length).putInt(0);
+        out.asIntBuffer().put(runStarts);
+        out.position(out.position() + runStarts.length * Integer.BYTES);
+        out.put(runTypes);
+        out.asLongBuffer().put(literals);
+        buffer.position(buffer.position() + size);
+    }
+
+    public static CompressedCoordSet readFrom(ByteBuffer buffer) {
+        ByteBuffer in = CellFormat.littleEndian(buffer);
+        if (in.remaining() < HEADER_SIZE || in.getInt() != MAGIC) {
+            throw new IllegalArgumentException("Not a compressed coord set");
+        }
+        int version = in.getInt();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported compressed coord set version "+version);
+        }
+        int w = in.getInt();
+        int h = in.getInt();
+        int coordCount = in.getInt();
+        int[] runStarts = new int[in.getInt()];
+        long[] literals = new long[in.getInt()];
+        byte[] runTypes = new byte[runStarts.length];
+        in.getInt();
+        if (in.remaining() < (long) runStarts.length * (Integer.BYTES + 1) + (long) literals.length * Long.BYTES) {
+            throw new BufferUnderflowException();
+        }
+        in.asIntBuffer().get(runStarts);
+        in.position(in.position() + runStarts.length * Integer.BYTES);
+        in.get(runTypes);
+        in.asLongBuffer().get(literals);
+        CompressedCoordSet set = new CompressedCoordSet(w, h, coordCount, runStarts, runTypes, literals);
+        buffer.position(buffer.position() + set.serializedSize());
+        return set;
+    }
+
+}
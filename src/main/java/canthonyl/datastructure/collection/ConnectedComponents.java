@@ -0,0 +1,201 @@
+package canthonyl.datastructure.collection;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Connected components of a {@link CoordSet}, labelled by a union-find over the horizontal runs of coords.
+ * Runs on consecutive rows belong to the same component when they overlap, or also when they touch diagonally
+ * for 8-connectivity.  Components are numbered in the order their first coord appears, scanning rows top to bottom.
+ * Component sets keep the dimension of the labelled set but are {@link CoordSet#sparse(Integer, Integer) sparse}, so
+ * their memory scales with the cells each component covers rather than the whole plane.
+ */
+public class ConnectedComponents {
+
+    private final Integer w;
+    private final Integer h;
+
+    //runs in row major order, rowStarts[y] is the index of the first run on row y
+    private final int[] runX1;
+    private final int[] runX2;
+    private final int[] runY;
+    private final int[] runLabels;
+    private final int[] rowStarts;
+
+    private final int componentCount;
+    private final int[] sizes;
+    private final int[] minX;
+    private final int[] minY;
+    private final int[] maxX;
+    private final int[] maxY;
+
+    static ConnectedComponents of(CoordSet set, Integer connectivity) {
+        if (connectivity != 4 && connectivity != 8) {
+            throw new IllegalArgumentException("Connectivity must be 4 or 8 but was "+connectivity);
+        }
+        RunLabeller labeller = new RunLabeller(connectivity == 8 ? 1 : 0);
+        set.forEachRun(labeller);
+        return new ConnectedComponents(set.getWidth(), set.getHeight(), labeller);
+    }
+
+    private ConnectedComponents(Integer w, Integer h, RunLabeller labeller) {
+        this.w = w;
+        this.h = h;
+        int runCount = labeller.runCount;
+        runX1 = Arrays.copyOf(labeller.x1, runCount);
+        runX2 = Arrays.copyOf(labeller.x2, runCount);
+        runY = Arrays.copyOf(labeller.y, runCount);
+
+        //roots are always the lowest run index of their component, so labels follow the order of first appearance
+        runLabels = new int[runCount];
+        int labels = 0;
+        for (int i = 0; i < runCount; i++) {
+            int root = labeller.find(i);
+            runLabels[i] = root == i ? labels++ : runLabels[root];
+        }
+        componentCount = labels;
+
+        sizes = new int[labels];
+        minX = new int[labels];
+        minY = new int[labels];
+        maxX = new int[labels];
+        maxY = new int[labels];
+        Arrays.fill(minX, Integer.MAX_VALUE);
+        Arrays.fill(maxX, -1);
+        rowStarts = new int[h + 1];
+        Arrays.fill(rowStarts, runCount);
+        for (int i = runCount - 1; i >= 0; i--) {
+            int label = runLabels[i];
+            sizes[label] += runX2[i] - runX1[i] + 1;
+            minX[label] = Math.min(minX[label], runX1[i]);
+            maxX[label] = Math.max(maxX[label], runX2[i]);
+            //runs are visited last to first, so the last write is the lowest row
+            minY[label] = runY[i];
+            maxY[label] = Math.max(maxY[label], runY[i]);
+            rowStarts[runY[i]] = i;
+        }
+        for (int y = h - 1; y >= 0; y--) {
+            rowStarts[y] = Math.min(rowStarts[y], rowStarts[y + 1]);
+        }
+    }
+
+    public Integer count() { return componentCount; }
+
+    public Integer getSize(Integer component) { return sizes[component]; }
+    public Integer getMinX(Integer component) { return minX[component]; }
+    public Integer getMinY(Integer component) { return minY[component]; }
+    public Integer getMaxX(Integer component) { return maxX[component]; }
+    public Integer getMaxY(Integer component) { return maxY[component]; }
+
+    //component containing the coord, or -1 if the coord is not in the set
+    public Integer labelAt(Integer x, Integer y) {
+        if (y < 0 || y >= h) {
+            return -1;
+        }
+        int low = rowStarts[y];
+        int high = rowStarts[y + 1] - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (runX2[mid] < x) {
+                low = mid + 1;
+            } else if (runX1[mid] > x) {
+                high = mid - 1;
+            } else {
+                return runLabels[mid];
+            }
+        }
+        return -1;
+    }
+
+    public CoordSet get(Integer component) {
+        CoordSet result = CoordSet.sparse(w, h);
+        for (int i = rowStarts[minY[component]]; i < rowStarts[maxY[component] + 1]; i++) {
+            if (runLabels[i] == component) {
+                result.add(runX1[i], runY[i], runX2[i], runY[i]);
+            }
+        }
+        return result;
+    }
+
+    //every component as its own set, in a single pass over the runs
+    public List<CoordSet> toList() {
+        List<CoordSet> components = new ArrayList<>(componentCount);
+        for (int i = 0; i < componentCount; i++) {
+            components.add(CoordSet.sparse(w, h));
+        }
+        for (int i = 0; i < runLabels.length; i++) {
+            components.get(runLabels[i]).add(runX1[i], runY[i], runX2[i], runY[i]);
+        }
+        return components;
+    }
+
+    //collects runs row by row, joining each run with the overlapping runs of the row above
+    static class RunLabeller implements CoordSet.RunConsumer {
+        private final int slack;
+        private int[] x1 = new int[64];
+        private int[] x2 = new int[64];
+        private int[] y = new int[64];
+        private int[] parent = new int[64];
+        private int runCount;
+
+        private int rowY = -2;
+        private int rowStart;
+        private int prevRowStart;
+        private int prevRowEnd;
+        private int prevIndex;
+
+        RunLabeller(int slack) {
+            this.slack = slack;
+        }
+
+        @Override
+        public void accept(int runX1, int runX2, int runY) {
+            if (runY != rowY) {
+                prevRowStart = runY == rowY + 1 ? rowStart : runCount;
+                prevRowEnd = runCount;
+                prevIndex = prevRowStart;
+                rowStart = runCount;
+                rowY = runY;
+            }
+            if (runCount == parent.length) {
+                x1 = Arrays.copyOf(x1, runCount * 2);
+                x2 = Arrays.copyOf(x2, runCount * 2);
+                y = Arrays.copyOf(y, runCount * 2);
+                parent = Arrays.copyOf(parent, runCount * 2);
+            }
+            int run = runCount++;
+            x1[run] = runX1;
+            x2[run] = runX2;
+            y[run] = runY;
+            parent[run] = run;
+
+            while (prevIndex < prevRowEnd && x2[prevIndex] + slack < runX1) {
+                prevIndex++;
+            }
+            //the last overlapping run above may also overlap the next run, so prevIndex stays on it
+            for (int above = prevIndex; above < prevRowEnd && x1[above] <= runX2 + slack; above++) {
+                union(above, run);
+            }
+        }
+
+        int find(int run) {
+            while (parent[run] != run) {
+                parent[run] = parent[parent[run]];
+                run = parent[run];
+            }
+            return run;
+        }
+
+        private void union(int a, int b) {
+            int rootA = find(a);
+            int rootB = find(b);
+            if (rootA < rootB) {
+                parent[rootB] = rootA;
+            } else if (rootB < rootA) {
+                parent[rootA] = rootB;
+            }
+        }
+    }
+
+}
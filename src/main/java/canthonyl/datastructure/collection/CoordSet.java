@@ -1,19 +1,44 @@
 package canthonyl.datastructure.collection;
 
 
-import canthonyl.jna.CellValue;
+import canthonyl.datastructure.collection.store.CellFormat;
+import canthonyl.datastructure.collection.store.CellStore;
+import canthonyl.datastructure.collection.store.HeapCellStore;
+import canthonyl.datastructure.collection.store.MappedCellStore;
+import canthonyl.datastructure.collection.store.NativeCellStore;
+import canthonyl.datastructure.collection.store.SparseCellStore;
 import com.sun.jna.Pointer;
 
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.Base64;
+import java.util.BitSet;
+import java.util.NoSuchElementException;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.PrimitiveIterator;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.LongBinaryOperator;
-import java.util.function.LongUnaryOperator;
+import java.util.function.LongConsumer;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import java.util.stream.LongStream;
+import java.util.stream.StreamSupport;
 
 import static java.lang.Math.abs;
 import static java.lang.Math.min;
@@ -51,10 +76,13 @@ public class CoordSet<T> implements ProjectTarget<T, Long> {
 
     private static final Integer ORIENTATION_X = 0;
     private static final Integer ORIENTATION_Y = 1;
+    private static final int SERIALIZED_CHUNK_CELLS = 8192;
+    //cells per band below which bulk operations run on the calling thread, if no threshold is given
+    private static final int DEFAULT_SEQUENTIAL_THRESHOLD = 4096;
 
     private final Integer cellWidth;
     private final Integer cellHeight;
-    private final CellValue[][] vals;
+    private final CellStore cells;
 
     private final Integer[] cellBoundByOrientation;
     private final Long[][] maskByOrientation;
@@ -63,9 +91,15 @@ public class CoordSet<T> implements ProjectTarget<T, Long> {
     private final Integer numCellsX;
     private final Integer numCellsY;
 
-    private Integer coordCount;
+    private int coordCount;
     private CompressionInfo compressionInfo;
     private Function<T, Long> converter;
+    private ForkJoinPool pool;
+    private Integer sequentialThreshold = DEFAULT_SEQUENTIAL_THRESHOLD;
+    //incremented by every change made through this set, used to detect a stale count index
+    private int modCount;
+    private CountIndex countIndex;
+    private int countIndexModCount;
 
 
     public CoordSet(Integer width, Integer height) {
@@ -83,10 +117,10 @@ public class CoordSet<T> implements ProjectTarget<T, Long> {
         cellBoundByOrientation = new Integer[]{numCellsX, numCellsY};
         maskByOrientation = new Long[][]{col, row};
 
-        vals = CellValue.array(numCellsX, numCellsY, cellWidth * cellHeight / 8);
-        for (Integer y = 0; y< numCellsY; y++){
-            for (Integer x = 0; x< numCellsX; x++) {
-                vals[y][x].setValue(supplier.applyAsLong(y,x));
+        cells = new HeapCellStore(numCellsX, numCellsY);
+        for (int y = 0; y< numCellsY; y++){
+            for (int x = 0; x< numCellsX; x++) {
+                cells.set(x, y, supplier.applyAsLong(y,x));
             }
         }
         compressionInfo = new CompressionInfo(width, height);
@@ -102,7 +136,7 @@ public class CoordSet<T> implements ProjectTarget<T, Long> {
         coordCount = 0;
         cellBoundByOrientation = new Integer[]{numCellsX, numCellsY};
         maskByOrientation = new Long[][]{col, row};
-        vals = address != null ? CellValue.array(numCellsX, numCellsY, cellWidth * cellHeight / 8, address) : CellValue.array(numCellsX, numCellsY, cellWidth * cellHeight / 8) ;
+        cells = new NativeCellStore(numCellsX, numCellsY, cellWidth * cellHeight / 8, address);
         compressionInfo = new CompressionInfo(width, height);
     }
 
@@ -121,12 +155,12 @@ public class CoordSet<T> implements ProjectTarget<T, Long> {
         cellBoundByOrientation = new Integer[]{numCellsX, numCellsY};
         maskByOrientation = new Long[][]{col, row};
 
-        vals = CellValue.array(numCellsX, numCellsY, cellWidth * cellHeight / 8);
+        cells = new HeapCellStore(numCellsX, numCellsY);
         for (Integer cellY=0; cellY< numCellsY; cellY++){
             String[] cols = allRows[cellY].split(",");
             for (Integer cellX = 0; cellX < numCellsX; cellX++){
                 Long value = Long.valueOf(cols[cellX]);
-                vals[cellY][cellX].setValue(value);
+                cells.set(cellX, cellY, value);
                 coordCount += Long.bitCount(value);
             }
         }
@@ -134,8 +168,122 @@ public class CoordSet<T> implements ProjectTarget<T, Long> {
         compressionInfo = new CompressionInfo(w, h);
     }
 
+    //creates a coord set backed by a memory mapped file, replacing any existing content of the file
+    public CoordSet(Path file, Integer width, Integer height) {
+        this(MappedCellStore.create(file, width, height));
+    }
+
+    //opens a coord set previously persisted to the memory mapped file, reading only its header
+    public CoordSet(Path file) {
+        this(MappedCellStore.open(file));
+    }
+
+    private CoordSet(MappedCellStore store) {
+        this(store.getWidth(), store.getHeight(), store, store.getCoordCount());
+    }
+
+    //creates a coord set over the given store, which must hold width x height coords in 8x8 cells
+    public CoordSet(Integer width, Integer height, CellStore store) {
+        this(width, height, store, null);
+    }
+
+    private CoordSet(Integer width, Integer height, CellStore store, Integer count) {
+        cellWidth = 8;
+        cellHeight = 8;
+        w = width;
+        h = height;
+        numCellsX = numCells(width);
+        numCellsY = numCells(height);
+        if (store.getNumCellsX() != numCellsX || store.getNumCellsY() != numCellsY) {
+            throw new IllegalArgumentException("Store of "+store.getNumCellsX()+"x"+store.getNumCellsY()
+                    +" cells does not match dimension "+width+"x"+height);
+        }
+        cellBoundByOrientation = new Integer[]{numCellsX, numCellsY};
+        maskByOrientation = new Long[][]{col, row};
+        cells = store;
+        coordCount = count != null ? count : countCoords(store);
+        compressionInfo = new CompressionInfo(w, h);
+    }
+
+    //creates a coord set that only materializes non-empty cells, for large and mostly empty planes
+    public static <T> CoordSet<T> sparse(Integer width, Integer height) {
+        return new CoordSet<>(width, height, new SparseCellStore(numCells(width), numCells(height)), 0);
+    }
+
+    private static Integer numCells(Integer length) {
+        return min(1, length % 8) + length / 8;
+    }
+
+    private static Integer countCoords(CellStore store) {
+        int[] count = {0};
+        store.forEachNonEmpty((cellX, cellY, value) -> {
+            count[0] += Long.bitCount(value);
+            return true;
+        });
+        return count[0];
+    }
+
+    //empty coord set of the given dimension, backed by the same kind of store and with the same parallelism as this set
+    private CoordSet emptyLike(Integer width, Integer height) {
+        CoordSet result = new CoordSet(width, height, cells.create(numCells(width), numCells(height)), 0);
+        result.setParallelism(pool, sequentialThreshold);
+        return result;
+    }
+
+    /**
+     * Runs bulk operations (intersect, union, addAll, removeAll, containsAllCoordsIn, containsAnyCoordsIn) over bands
+     * of cell rows in the given pool.  Bands of at most sequentialThreshold cells, and sets whose store is not
+     * {@link CellStore#isDense() dense}, run on the calling thread.  A null pool runs every operation on the calling thread,
+     * a null threshold defaults to 4096 cells.
+     */
+    public void setParallelism(ForkJoinPool pool, Integer sequentialThreshold) {
+        this.pool = pool;
+        this.sequentialThreshold = sequentialThreshold != null ? sequentialThreshold : DEFAULT_SEQUENTIAL_THRESHOLD;
+    }
+
+    //applies operation to all bands of cell rows, returning the sum of the band results
+    private Integer forEachBand(CoordSet other, BandOperation operation) {
+        if (pool == null || !cells.isDense() || !other.cells.isDense() || (long) numCellsX * numCellsY <= sequentialThreshold) {
+            return operation.apply(0, numCellsY - 1);
+        }
+        return pool.invoke(new BandTask(operation, 0, numCellsY - 1));
+    }
+
+    @FunctionalInterface
+    interface BandOperation {
+        int apply(int cellY1, int cellY2);
+    }
+
+    class BandTask extends RecursiveTask<Integer> {
+        private static final long serialVersionUID = 1L;
+
+        private final BandOperation operation;
+        private final int cellY1;
+        private final int cellY2;
+
+        BandTask(BandOperation operation, int cellY1, int cellY2) {
+            this.operation = operation;
+            this.cellY1 = cellY1;
+            this.cellY2 = cellY2;
+        }
+
+        @Override
+        protected Integer compute() {
+            int rows = cellY2 - cellY1 + 1;
+            if (rows <= 1 || (long) rows * numCellsX <= sequentialThreshold) {
+                return operation.apply(cellY1, cellY2);
+            }
+            int mid = (cellY1 + cellY2) >>> 1;
+            BandTask upper = new BandTask(operation, cellY1, mid);
+            upper.fork();
+            int lower = new BandTask(operation, mid + 1, cellY2).compute();
+            return upper.join() + lower;
+        }
+    }
+
     public Integer getWidth() { return w; }
     public Integer getHeight() { return h; }
+    public CellStore getCellStore() { return cells; }
 
     //determine if cell should be clipped with respect to given absolute bound
     private Long maskCell(Integer cellHIndex, Integer cellVIndex, Integer boundStartX, Integer boundStartY, Integer boundEndX, Integer boundEndY) {
@@ -156,7 +304,7 @@ public class CoordSet<T> implements ProjectTarget<T, Long> {
     }
 
     public CoordSet retain(Integer orientation, Integer direction) {
-        CoordSet result = new CoordSet(w, h);
+        CoordSet result = emptyLike(w, h);
         result.addAll(this);
         result.retain(orientation, direction, 0, 0, getWidth()-1, getHeight()-1);
         return result;
@@ -166,15 +314,15 @@ public class CoordSet<T> implements ProjectTarget<T, Long> {
         Optional<Long> result = Optional.empty();
         if (orientation == ORIENTATION_X) {
             if (direction == -1 && cellX < numCellsX-1) {
-                result = Optional.of(vals[cellY][cellX+1].getLong());
+                result = Optional.of(cells.get(cellX+1, cellY));
             } else if (direction == 1 && cellX > 0) {
-                result = Optional.of(vals[cellY][cellX-1].getLong());
+                result = Optional.of(cells.get(cellX-1, cellY));
             }
         } else {
             if (direction == -1 && cellY < numCellsY-1 ){
-                result = Optional.of(vals[cellY+1][cellX].getLong());
+                result = Optional.of(cells.get(cellX, cellY+1));
             } else if (direction == 1 && cellY > 0) {
-                result = Optional.of(vals[cellY-1][cellX].getLong());
+                result = Optional.of(cells.get(cellX, cellY-1));
             }
         }
         return result;
@@ -218,37 +366,126 @@ public class CoordSet<T> implements ProjectTarget<T, Long> {
     }
 
     public CoordSet retain(CoordSet target){
-        CoordSet result = new CoordSet(w, h);
+        if (cellHeight != 8 || target.cellHeight != 8) {
+            return retainByOrientation(target);
+        }
+        CoordSet result = emptyLike(w, h);
+        int lastX = numCellsX - 1;
+        int lastY = numCellsY - 1;
+        int[] count = {0};
+
+        //retained coords are always within target, only non-empty target cells need to be visited
+        target.cells.forEachNonEmpty((cellX, cellY, cellVal) -> {
+            long startVal = cells.get(cellX, cellY);
+            long nStartVal = cellY > 0 ? cells.get(cellX, cellY - 1) : 0L;
+            long nCellVal = cellY > 0 ? target.cells.get(cellX, cellY - 1) : 0L;
+            long eStartVal = cellX < lastX ? cells.get(cellX + 1, cellY) : 0L;
+            long eCellVal = cellX < lastX ? target.cells.get(cellX + 1, cellY) : 0L;
+            long sStartVal = cellY < lastY ? cells.get(cellX, cellY + 1) : 0L;
+            long sCellVal = cellY < lastY ? target.cells.get(cellX, cellY + 1) : 0L;
+            long wStartVal = cellX > 0 ? cells.get(cellX - 1, cellY) : 0L;
+            long wCellVal = cellX > 0 ? target.cells.get(cellX - 1, cellY) : 0L;
+
+            long retainedVal = RetainDirection.NORTH.retain(sStartVal, startVal, sCellVal, cellVal)
+                    | RetainDirection.EAST.retain(wStartVal, startVal, wCellVal, cellVal)
+                    | RetainDirection.SOUTH.retain(nStartVal, startVal, nCellVal, cellVal)
+                    | RetainDirection.WEST.retain(eStartVal, startVal, eCellVal, cellVal);
+            if (retainedVal != 0L) {
+                result.cells.set(cellX, cellY, retainedVal);
+                count[0] += Long.bitCount(retainedVal);
+            }
+            return true;
+        });
+        result.coordCount = count[0];
+        return result;
+    }
+
+    //general form for cells shorter than 8 rows, runs the retain kernel once per direction
+    private CoordSet retainByOrientation(CoordSet target){
+        CoordSet result = emptyLike(w, h);
         Integer horizontal = 0;
         Integer vertical = 1;
 
-        for (Integer cellY = 0; cellY < numCellsY; cellY++){
-            for (Integer cellX = 0; cellX < numCellsX; cellX++){
-                Optional<Long> nStartVal = prevCellVal(cellX, cellY, vertical, 1);
-                Optional<Long> nCellVal = target.prevCellVal(cellX, cellY, vertical, 1);
-                Optional<Long> eStartVal = prevCellVal(cellX, cellY, horizontal, -1);
-                Optional<Long> eCellVal = target.prevCellVal(cellX, cellY, horizontal, -1);
-                Optional<Long> sStartVal = prevCellVal(cellX, cellY, vertical, -1);
-                Optional<Long> sCellVal = target.prevCellVal(cellX, cellY, vertical, -1);
-                Optional<Long> wStartVal = prevCellVal(cellX, cellY, horizontal, 1);
-                Optional<Long> wCellVal = target.prevCellVal(cellX, cellY, horizontal, 1);
-
-                Long startVal = vals[cellY][cellX].getLong();
-                Long cellVal = target.vals[cellY][cellX].getLong();
-
-                Long nResult = retain(sStartVal, startVal, sCellVal, cellVal, vertical, -1);
-                Long eResult = retain(wStartVal, startVal, wCellVal, cellVal, horizontal, 1);
-                Long sResult = retain(nStartVal, startVal, nCellVal, cellVal, vertical, 1);
-                Long wResult = retain(eStartVal, startVal, eCellVal, cellVal, horizontal, -1);
-
-                Long retainedVal = nResult | eResult | sResult | wResult;
-                result.vals[cellY][cellX].setValue(retainedVal);
-                result.coordCount += Long.bitCount(retainedVal);
-            }
-        }
+        target.cells.forEachNonEmpty((cellX, cellY, cellVal) -> {
+            Optional<Long> nStartVal = prevCellVal(cellX, cellY, vertical, 1);
+            Optional<Long> nCellVal = target.prevCellVal(cellX, cellY, vertical, 1);
+            Optional<Long> eStartVal = prevCellVal(cellX, cellY, horizontal, -1);
+            Optional<Long> eCellVal = target.prevCellVal(cellX, cellY, horizontal, -1);
+            Optional<Long> sStartVal = prevCellVal(cellX, cellY, vertical, -1);
+            Optional<Long> sCellVal = target.prevCellVal(cellX, cellY, vertical, -1);
+            Optional<Long> wStartVal = prevCellVal(cellX, cellY, horizontal, 1);
+            Optional<Long> wCellVal = target.prevCellVal(cellX, cellY, horizontal, 1);
+
+            Long startVal = cells.get(cellX, cellY);
+
+            Long nResult = retain(sStartVal, startVal, sCellVal, cellVal, vertical, -1);
+            Long eResult = retain(wStartVal, startVal, wCellVal, cellVal, horizontal, 1);
+            Long sResult = retain(nStartVal, startVal, nCellVal, cellVal, vertical, 1);
+            Long wResult = retain(eStartVal, startVal, eCellVal, cellVal, horizontal, -1);
+
+            Long retainedVal = nResult | eResult | sResult | wResult;
+            result.cells.set(cellX, cellY, retainedVal);
+            result.coordCount += Long.bitCount(retainedVal);
+            return true;
+        });
         return result;
     }
 
+    /**
+     * Primitive form of the retain kernel for 8x8 cells, specialised by the direction coords are scanned in.
+     * Lines are columns for EAST/WEST and rows for NORTH/SOUTH, the first line is the one entered from the previous cell.
+     */
+    enum RetainDirection {
+        EAST(1, true, col[0], col[7]),
+        WEST(1, false, col[7], col[0]),
+        SOUTH(8, true, row[0], row[7]),
+        NORTH(8, false, row[7], row[0]);
+
+        private final int unit;
+        private final boolean forwardLeft;
+        private final long firstLine;
+        private final long lastLine;
+        //bits still within the cell after moving forward by n lines
+        private final long[] keep = new long[8];
+
+        RetainDirection(int unit, boolean forwardLeft, long firstLine, long lastLine) {
+            this.unit = unit;
+            this.forwardLeft = forwardLeft;
+            this.firstLine = firstLine;
+            this.lastLine = lastLine;
+            for (int n = 0; n < 8; n++) {
+                keep[n] = unit == 8 ? -1L : (forwardLeft ? fromX[n] : toX[7 - n]);
+            }
+        }
+
+        private long forward(long value, int lines) {
+            return (forwardLeft ? value << lines * unit : value >>> lines * unit) & keep[lines];
+        }
+
+        //inclusive running or of each line with all lines before it
+        private long fill(long value) {
+            value |= forward(value, 1);
+            value |= forward(value, 2);
+            return value | forward(value, 4);
+        }
+
+        long retain(long prevStartVal, long startVal, long prevCellVal, long cellVal) {
+            //last line of the previous cell moved onto the first line of this cell
+            long prevStartEdge = (forwardLeft ? prevStartVal >>> 7 * unit : prevStartVal << 7 * unit) & firstLine;
+            long prevCellEdge = (forwardLeft ? prevCellVal >>> 7 * unit : prevCellVal << 7 * unit) & firstLine;
+
+            long startEnds = ~startVal & (prevStartEdge | forward(startVal, 1)) & cellVal;
+            long cellEnds = ~cellVal & (prevCellEdge | forward(cellVal, 1));
+
+            long afterStart = fill(startEnds);
+            long reached = fill(cellEnds & afterStart);
+            long stopped = (reached & ~lastLine) | (forward(reached, 1) & lastLine);
+            if ((afterStart & lastLine) != 0L) {
+                stopped |= lastLine & ~afterStart;
+            }
+            return afterStart & ~stopped & cellVal;
+        }
+    }
 
     public void retain(Integer orientation, Integer direction, Integer x1, Integer y1, Integer x2, Integer y2) {
         Integer directionInd = direction == 1 ? 0 : 1;
@@ -263,8 +500,16 @@ public class CoordSet<T> implements ProjectTarget<T, Long> {
         Integer end = select[directionInd][1];
         Integer[] i = new Integer[2]; //x,y
         Long[] searchDirectionMask = orientation.intValue() == 0 ? col : row;
+        modCount++;
+
+        //lines without any coord are left unchanged, only visit lines with at least one non-empty cell
+        BitSet lines = new BitSet();
+        cells.forEachNonEmpty(range[0][0], range[1][0], range[0][1], range[1][1], (cellX, cellY, value) -> {
+            lines.set(orientation == 0 ? cellY : cellX);
+            return true;
+        });
 
-        for (i[step] = range[step][0]; i[step] <= range[step][1]; i[step]++){
+        for (i[step] = lines.nextSetBit(range[step][0]); i[step] >= 0 && i[step] <= range[step][1]; i[step] = lines.nextSetBit(i[step] + 1)){
             Long prev = 0L;
             Long toggle = -1L;
             for (i[search] = range[search][start]; i[search].compareTo(range[search][end]) != direction; i[search] += direction) {
@@ -272,8 +517,7 @@ public class CoordSet<T> implements ProjectTarget<T, Long> {
                 Integer cellY = i[1];
 
                 Long resultMask = maskCell(cellX, cellY, x1, y1, x2, y2);
-                CellValue cellValue = vals[cellY][cellX];
-                Long val = cellValue.getLong();
+                Long val = cells.get(cellX, cellY);
                 Long maskedVal = val & resultMask;
 
                 Long result = 0L;
@@ -296,7 +540,7 @@ public class CoordSet<T> implements ProjectTarget<T, Long> {
                     }
                 }
                 Long resultValue = -1L^(((-1L^(val & (-1L^resultMask))) & (-1L^result)));
-                cellValue.setValue( resultValue );
+                cells.set(cellX, cellY, resultValue);
                 Integer resetShift = orientation.intValue() == 0 ? cellWidth-1 : (cellHeight-1) * (cellWidth);
                 if (direction == 1) {
                     prev = prev >>> resetShift;
@@ -310,27 +554,31 @@ public class CoordSet<T> implements ProjectTarget<T, Long> {
     }
 
     public Boolean containsAllCoordsIn(CoordSet targetSet) {
-        for(Integer y=0; y<numCellsY; y++){
-            for (Integer x=0; x< numCellsX; x++){
-                Long compare = targetSet.vals[y][x].getLong() & (-1L^(vals[y][x].getLong()));
-                if (!Objects.equals(compare, 0L)) {
-                    return false;
+        AtomicBoolean missing = new AtomicBoolean();
+        forEachBand(targetSet, (cellY1, cellY2) -> {
+            targetSet.cells.forEachNonEmpty(0, cellY1, numCellsX - 1, cellY2, (x, y, value) -> {
+                if ((value & (-1L^cells.get(x, y))) != 0L) {
+                    missing.set(true);
                 }
-            }
-        }
-        return true;
+                return !missing.get();
+            });
+            return 0;
+        });
+        return !missing.get();
     }
 
     public Boolean containsAnyCoordsIn(CoordSet targetSet) {
-        for(Integer y=0; y<numCellsY; y++){
-            for (Integer x=0; x< numCellsX; x++){
-                Long compare = targetSet.vals[y][x].getLong() & vals[y][x].getLong();
-                if (!Objects.equals(compare, 0L)) {
-                    return true;
+        AtomicBoolean found = new AtomicBoolean();
+        forEachBand(targetSet, (cellY1, cellY2) -> {
+            cells.forEachNonEmpty(0, cellY1, numCellsX - 1, cellY2, (x, y, value) -> {
+                if ((value & targetSet.cells.get(x, y)) != 0L) {
+                    found.set(true);
                 }
-            }
-        }
-        return false;
+                return !found.get();
+            });
+            return 0;
+        });
+        return found.get();
     }
 
     public Long compress(Long originalValue, Long compressionXBit, Long compressionYBit) {
@@ -372,12 +620,11 @@ public class CoordSet<T> implements ProjectTarget<T, Long> {
     @Override
     public void updateRange(Integer x1, Integer y1, Integer x2, Integer y2, T value) {
         Long convertedValue = converter.apply(value);
+        modCount++;
 
-        for (Integer cellY=y1; cellY <= y2; cellY++) {
-            for (Integer cellX=x1; cellX <= x2; cellX++) {
-                CellValue cellValue = vals[cellY][cellX];
-                cellValue.setValue(convertedValue);
-                cellValue.write();
+        for (int cellY=y1; cellY <= y2; cellY++) {
+            for (int cellX=x1; cellX <= x2; cellX++) {
+                cells.set(cellX, cellY, convertedValue);
             }
         }
 
@@ -425,6 +672,20 @@ public class CoordSet<T> implements ProjectTarget<T, Long> {
             totalBitCount += Long.bitCount(buckets[index] ^ prevVal);
         }
 
+        void encodeCellAt(Integer cellIndex, Long val) {
+            offset = cellIndex * cellLength;
+            encodeCell(val);
+        }
+
+        //start of each cell once compressed, the number of kept positions in all cells before it
+        int[] cellStarts(int numCells) {
+            int[] starts = new int[numCells];
+            for (int i = 1; i < numCells; i++) {
+                starts[i] = starts[i - 1] + Long.bitCount(valueAtCell(i - 1));
+            }
+            return starts;
+        }
+
         void clear() { Arrays.fill(buckets, 0L); totalBitCount = 0; }
         void resetCellIndex() { offset = 0; }
         void nextCell() { offset += cellLength; }
@@ -512,26 +773,27 @@ public class CoordSet<T> implements ProjectTarget<T, Long> {
         Long maskX = offsetX == 0 ? 0L : fromX[0] & toX[offsetX - 1];
         Long maskY = offsetY == 0 ? 0L : fromY[0] & toY[offsetY - 1];
         Long shifted = shift(value, offsetX, offsetY);
-        Long currentValue = vals[cellY][cellX].getLong();
-        vals[cellY][cellX].setValue((currentValue & (maskX | maskY)) | shifted);
+        modCount++;
+        Long currentValue = cells.get(cellX, cellY);
+        cells.set(cellX, cellY, (currentValue & (maskX | maskY)) | shifted);
 
         Boolean nextX = cellX < numCellsX - 1 && offsetX > 0;
         Boolean nextY = cellY < numCellsY - 1 && offsetY > 0;
 
         if (nextX) {
-            currentValue = vals[cellY][cellX+1].getLong();
+            currentValue = cells.get(cellX+1, cellY);
             shifted = shift(value, offsetX- cellWidth, offsetY);
-            vals[cellY][cellX+1].setValue((currentValue & (fromX[offsetX] & toX[7] | maskY)) | shifted);
+            cells.set(cellX+1, cellY, (currentValue & (fromX[offsetX] & toX[7] | maskY)) | shifted);
         }
         if (nextY) {
-            currentValue = vals[cellY+1][cellX].getLong();
+            currentValue = cells.get(cellX, cellY+1);
             shifted = shift(value, offsetX, offsetY- cellHeight);
-            vals[cellY+1][cellX].setValue((currentValue & (fromY[offsetY] & toY[7] | maskX)) | shifted);
+            cells.set(cellX, cellY+1, (currentValue & (fromY[offsetY] & toY[7] | maskX)) | shifted);
         }
         if (nextX && nextY) {
-            currentValue = vals[cellY+1][cellX+1].getLong();
+            currentValue = cells.get(cellX+1, cellY+1);
             shifted = shift(value, offsetX- cellWidth, offsetY- cellHeight);
-            vals[cellY+1][cellX+1].setValue((currentValue & ((fromY[offsetY] & toY[7]) | (fromX[offsetX] & toX[7]))) | shifted);
+            cells.set(cellX+1, cellY+1, (currentValue & ((fromY[offsetY] & toY[7]) | (fromX[offsetX] & toX[7]))) | shifted);
         }
     }
 
@@ -541,97 +803,67 @@ public class CoordSet<T> implements ProjectTarget<T, Long> {
         Integer cellX = x / cellWidth;
         Integer cellY = y / cellHeight;
 
-        Long value = shift(vals[cellY][cellX].getLong(), -offsetX, -offsetY);
+        Long value = shift(cells.get(cellX, cellY), -offsetX, -offsetY);
 
         Boolean nextX = cellX < numCellsX - 1 && offsetX > 0;
         Boolean nextY = cellY < numCellsY - 1 && offsetY > 0;
-        if (nextX) value |= shift(vals[cellY][cellX+1].getLong(), 8-offsetX, -offsetY);
-        if (nextY) value |= shift(vals[cellY+1][cellX].getLong(), -offsetX, 8-offsetY);
-        if (nextX && nextY) value |= shift(vals[cellY+1][cellX+1].getLong(), 8-offsetX, 8-offsetY);
+        if (nextX) value |= shift(cells.get(cellX+1, cellY), 8-offsetX, -offsetY);
+        if (nextY) value |= shift(cells.get(cellX, cellY+1), -offsetX, 8-offsetY);
+        if (nextX && nextY) value |= shift(cells.get(cellX+1, cellY+1), 8-offsetX, 8-offsetY);
 
         if (cellX == numCellsX-1 && offsetX > 0) {
-            value = (value & toX[(w-1)% cellWidth]) | (-1L^vals[cellY][cellX].getLong()) & col[(w-1)% cellWidth] ;
+            value = (value & toX[(w-1)% cellWidth]) | (-1L^cells.get(cellX, cellY)) & col[(w-1)% cellWidth] ;
         }
         if (cellY == numCellsY-1 && offsetY > 0) {
-            value = (value & toY[(h-1)% cellHeight]) | (-1L^vals[cellY][cellX].getLong()) & row[(h-1)% cellHeight] ;
+            value = (value & toY[(h-1)% cellHeight]) | (-1L^cells.get(cellX, cellY)) & row[(h-1)% cellHeight] ;
         }
         return value;
     }
 
 
     public CoordSet compact() {
-
         compressionInfo.clear();
-        for (Integer cellY = 0; cellY < numCellsY; cellY++) {
-            Long yCompress = 0L;
-            compressionInfo.x.resetCellIndex();
-            for (Integer cellX = 0; cellX < numCellsX; cellX++) {
-                Integer cellStartX = cellX * cellWidth;
-                Integer cellStartY = cellY * cellHeight;
-
-                Long cellValue = vals[cellY][cellX].getLong();
-                Long xCompress = cellValue ^ extract(cellStartX + 1, cellStartY) ;
-                Long transposed = transposeIfSet(xCompress, 0);
-                compressionInfo.x.encodeCell(transposed);
-                compressionInfo.x.nextCell();
-
-                yCompress |= cellValue ^ extract(cellStartX, cellStartY+1);
-            }
-            Long transposed = transposeIfSet(yCompress, 1);
-            compressionInfo.y.encodeCell(transposed);
-            compressionInfo.y.nextCell();
-        }
-
-        CoordSet result = new CoordSet(compressionInfo.x.totalBitCount(), compressionInfo.y.totalBitCount());
-
-        Integer resultSize = 0;
-        Integer currentX = 0;
-        Integer currentY = 0;
-        compressionInfo.reset();
-
-        for (Integer cellX = 0; cellX < numCellsX; cellX++ ){
-            for (Integer cellY = 0; cellY < numCellsY; cellY++){
-                Long original = vals[cellY][cellX].getLong();
-                Long compressed = compress(original, compressionInfo.x.currentValue(), compressionInfo.y.currentValue());
-                result.overlay(currentX, currentY, compressed);
-                currentY += compressionInfo.y.cellCompressBitCount();
-                compressionInfo.y.nextCell();
-                resultSize += Long.bitCount(compressed);
-            }
-            currentX += compressionInfo.x.cellCompressBitCount();
-            currentY = 0;
-            compressionInfo.x.nextCell();
-            compressionInfo.y.resetCellIndex();
+        //an empty cell only marks a column or row through a non-empty cell to its right or below, or as part of the last
+        //column or row of cells, so only those cells are encoded
+        cells.forEachNonEmpty((cellX, cellY, cellValue) -> {
+            encodeCompression(cellX, cellY);
+            if (cellX > 0) encodeCompression(cellX - 1, cellY);
+            if (cellY > 0) encodeCompression(cellX, cellY - 1);
+            return true;
+        });
+        for (int cellY = 0; cellY < numCellsY; cellY++) {
+            encodeCompression(numCellsX - 1, cellY);
+        }
+        for (int cellX = 0; cellX < numCellsX; cellX++) {
+            encodeCompression(cellX, numCellsY - 1);
         }
+        return compact(compressionInfo);
+    }
 
-        result.coordCount = resultSize;
-        return result;
+    //marks the columns and rows of the cell that differ from the next column and row, encoding a cell again is a no-op
+    private void encodeCompression(int cellX, int cellY) {
+        Integer cellStartX = cellX * cellWidth;
+        Integer cellStartY = cellY * cellHeight;
+        Long cellValue = cells.get(cellX, cellY);
+        compressionInfo.x.encodeCellAt(cellX, transposeIfSet(cellValue ^ extract(cellStartX + 1, cellStartY), 0));
+        compressionInfo.y.encodeCellAt(cellY, transposeIfSet(cellValue ^ extract(cellStartX, cellStartY + 1), 1));
     }
 
     CoordSet compact(CompressionInfo info){
-        CoordSet result = new CoordSet(info.x.totalBitCount(), info.y.totalBitCount());
-
-        Integer resultSize = 0;
-        Integer currentX = 0;
-        Integer currentY = 0;
-        info.reset();
-
-        for (Integer cellX = 0; cellX < numCellsX; cellX++ ){
-            for (Integer cellY = 0; cellY < numCellsY; cellY++){
-                Long original = vals[cellY][cellX].getLong();
-                Long compressed = compress(original, info.x.currentValue(), info.y.currentValue());
-                result.overlay(currentX, currentY, compressed);
-                currentY += info.y.cellCompressBitCount();
-                info.y.nextCell();
-                resultSize += Long.bitCount(compressed);
-            }
-            currentX += info.x.cellCompressBitCount();
-            currentY = 0;
-            info.x.nextCell();
-            info.y.resetCellIndex();
-        }
-
-        result.coordCount = resultSize;
+        CoordSet result = emptyLike(info.x.totalBitCount(), info.y.totalBitCount());
+        int[] startX = info.x.cellStarts(numCellsX);
+        int[] startY = info.y.cellStarts(numCellsY);
+
+        //empty cells compress to nothing, so only non-empty cells are placed
+        int[] resultSize = {0};
+        cells.forEachNonEmpty((cellX, cellY, original) -> {
+            Long compressed = compress(original, info.x.valueAtCell(cellX), info.y.valueAtCell(cellY));
+            result.overlay(startX[cellX], startY[cellY], compressed);
+            resultSize[0] += Long.bitCount(compressed);
+            return true;
+        });
+
+        result.coordCount = resultSize[0];
         return result;
     }
 
@@ -639,15 +871,156 @@ public class CoordSet<T> implements ProjectTarget<T, Long> {
     public Boolean contains(Integer x, Integer y) {
         Integer offsetY = y % cellHeight;
         Integer offsetX = x % cellWidth;
-        CellValue cellValue = vals[y/ cellHeight][x/ cellWidth];
-        Long val = cellValue.getLong();
-        return !Objects.equals(0L, val & (1L << (offsetY * cellWidth + offsetX)));
+        long val = cells.get(x/ cellWidth, y/ cellHeight);
+        return (val & (1L << (offsetY * cellWidth + offsetX))) != 0L;
     }
 
     public Integer count(){
         return coordCount;
     }
 
+    /**
+     * Counts coords within the inclusive bound in constant time, from a prefix count index over the cells.
+     * The index is built on first use and rebuilt in place on the first count after the set changes.  Changes made
+     * directly through {@link #getCellStore()} are not detected.  Sets whose store is not {@link CellStore#isDense() dense}
+     * count the non-empty cells of the bound instead, rather than indexing every cell of the plane.
+     */
+    public Integer countInRegion(Integer x1, Integer y1, Integer x2, Integer y2) {
+        int startX = Math.max(x1, 0);
+        int startY = Math.max(y1, 0);
+        int endX = min(x2, w - 1);
+        int endY = min(y2, h - 1);
+        if (startX > endX || startY > endY) {
+            return 0;
+        }
+        if (!cells.isDense()) {
+            return countNonEmptyCells(startX, startY, endX, endY);
+        }
+        return countIndex().count(startX, startY, endX, endY);
+    }
+
+    private int countNonEmptyCells(int x1, int y1, int x2, int y2) {
+        checkCellSize("counted");
+        int cellX1 = x1 / cellWidth, cellY1 = y1 / cellHeight, cellX2 = x2 / cellWidth, cellY2 = y2 / cellHeight;
+        int[] count = {0};
+        cells.forEachNonEmpty(cellX1, cellY1, cellX2, cellY2, (cellX, cellY, value) -> {
+            long mask = (cellX == cellX1 ? fromX[x1 % cellWidth] : -1L) & (cellX == cellX2 ? toX[x2 % cellWidth] : -1L)
+                    & (cellY == cellY1 ? fromY[y1 % cellHeight] : -1L) & (cellY == cellY2 ? toY[y2 % cellHeight] : -1L);
+            count[0] += Long.bitCount(value & mask);
+            return true;
+        });
+        return count[0];
+    }
+
+    public Boolean isEmpty(Integer x1, Integer y1, Integer x2, Integer y2) {
+        return countInRegion(x1, y1, x2, y2) == 0;
+    }
+
+    //first x at or after the given x in row y holding a coord, -1 if there is none
+    public Integer nextSetX(Integer x, Integer y) {
+        return searchX(x, y, true, 0L);
+    }
+
+    //last x at or before the given x in row y holding a coord, -1 if there is none
+    public Integer prevSetX(Integer x, Integer y) {
+        return searchX(x, y, false, 0L);
+    }
+
+    public Integer nextClearX(Integer x, Integer y) {
+        return searchX(x, y, true, -1L);
+    }
+
+    public Integer prevClearX(Integer x, Integer y) {
+        return searchX(x, y, false, -1L);
+    }
+
+    //first y at or after the given y in column x holding a coord, -1 if there is none
+    public Integer nextSetY(Integer x, Integer y) {
+        return searchY(x, y, true, 0L);
+    }
+
+    //last y at or before the given y in column x holding a coord, -1 if there is none
+    public Integer prevSetY(Integer x, Integer y) {
+        return searchY(x, y, false, 0L);
+    }
+
+    public Integer nextClearY(Integer x, Integer y) {
+        return searchY(x, y, true, -1L);
+    }
+
+    public Integer prevClearY(Integer x, Integer y) {
+        return searchY(x, y, false, -1L);
+    }
+
+    //searches the row byte of one cell at a time, cells are xor-ed with flip so that clear coords are searched as set bits
+    private int searchX(int x, int y, boolean forward, long flip) {
+        checkCellSize("searched");
+        int start = forward ? Math.max(x, 0) : min(x, w - 1);
+        if (y < 0 || y >= h || start < 0 || start >= w) {
+            return -1;
+        }
+        int cellX = start / cellWidth;
+        int cellY = y / cellHeight;
+        int shift = (y % cellHeight) * cellWidth;
+        int bits = (int) (((cells.get(cellX, cellY) ^ flip) >>> shift) & 0xFF);
+        if (forward) {
+            bits &= 0xFF << (start % cellWidth);
+            while (bits == 0 && ++cellX < numCellsX) {
+                bits = (int) (((cells.get(cellX, cellY) ^ flip) >>> shift) & 0xFF);
+            }
+            int found = cellX * cellWidth + Integer.numberOfTrailingZeros(bits);
+            return bits != 0 && found < w ? found : -1;
+        }
+        bits &= 0xFF >>> (cellWidth - 1 - start % cellWidth);
+        while (bits == 0 && --cellX >= 0) {
+            bits = (int) (((cells.get(cellX, cellY) ^ flip) >>> shift) & 0xFF);
+        }
+        return bits != 0 ? cellX * cellWidth + 31 - Integer.numberOfLeadingZeros(bits) : -1;
+    }
+
+    //searches the column bits of one cell at a time, one bit per byte, so the found bit index divided by 8 is the offset y
+    private int searchY(int x, int y, boolean forward, long flip) {
+        checkCellSize("searched");
+        int start = forward ? Math.max(y, 0) : min(y, h - 1);
+        if (x < 0 || x >= w || start < 0 || start >= h) {
+            return -1;
+        }
+        int cellX = x / cellWidth;
+        int cellY = start / cellHeight;
+        long columnMask = col[x % cellWidth];
+        long bits = (cells.get(cellX, cellY) ^ flip) & columnMask;
+        if (forward) {
+            bits &= -1L << (start % cellHeight * cellWidth);
+            while (bits == 0L && ++cellY < numCellsY) {
+                bits = (cells.get(cellX, cellY) ^ flip) & columnMask;
+            }
+            int found = cellY * cellHeight + Long.numberOfTrailingZeros(bits) / cellWidth;
+            return bits != 0L && found < h ? found : -1;
+        }
+        bits &= -1L >>> ((cellHeight - 1 - start % cellHeight) * cellWidth);
+        while (bits == 0L && --cellY >= 0) {
+            bits = (cells.get(cellX, cellY) ^ flip) & columnMask;
+        }
+        return bits != 0L ? cellY * cellHeight + (63 - Long.numberOfLeadingZeros(bits)) / cellWidth : -1;
+    }
+
+    private CountIndex countIndex() {
+        checkCellSize("indexed");
+        if (countIndex == null) {
+            countIndex = new CountIndex(cells);
+            countIndexModCount = modCount;
+        } else if (countIndexModCount != modCount) {
+            countIndex.rebuild();
+            countIndexModCount = modCount;
+        }
+        return countIndex;
+    }
+
+    //writes cells and count through to persistent storage, no-op for sets held in memory
+    public void force(){
+        cells.force(coordCount);
+    }
+
     public Boolean add(Integer x, Integer y) {
         Integer changeCount = applyBitOperationAt(x, y, (a, b) -> a|b);
         coordCount += changeCount;
@@ -667,33 +1040,276 @@ public class CoordSet<T> implements ProjectTarget<T, Long> {
     }
 
     public Integer remove(Integer x1, Integer y1, Integer x2, Integer y2) {
-        Integer changeCount = applyBitOperationInRegion(x1, y1, x2, y2, (a,b) -> (-1L^a)&b);
-        coordCount -= changeCount;
-        return changeCount;
+        int[] changeCount = {0};
+        modCount++;
+        cells.forEachNonEmpty(x1 / cellWidth, y1 / cellHeight, x2 / cellWidth, y2 / cellHeight, (cellX, cellY, value) -> {
+            long afterVal = value & (-1L^maskCell(cellX, cellY, x1, y1, x2, y2));
+            if (value != afterVal) {
+                cells.set(cellX, cellY, afterVal);
+                changeCount[0] += Long.bitCount(value ^ afterVal);
+            }
+            return true;
+        });
+        coordCount -= changeCount[0];
+        return changeCount[0];
     }
 
     public CoordSet intersect(CoordSet set){
-        CoordSet result = new CoordSet(set.w, set.h);
-        for(Integer y=0; y<numCellsY; y++){
-            for (Integer x=0; x< numCellsX; x++){
-                Long resultValue = vals[y][x].getLong() & set.vals[y][x].getLong();
-                result.vals[y][x].setValue(resultValue);
-                result.coordCount += Long.bitCount(resultValue);
-            }
-        }
+        CoordSet result = emptyLike(set.w, set.h);
+        result.coordCount = forEachBand(set, (cellY1, cellY2) -> {
+            int[] count = {0};
+            cells.forEachNonEmpty(0, cellY1, numCellsX - 1, cellY2, (x, y, value) -> {
+                long resultValue = value & set.cells.get(x, y);
+                if (resultValue != 0L) {
+                    result.cells.set(x, y, resultValue);
+                    count[0] += Long.bitCount(resultValue);
+                }
+                return true;
+            });
+            return count[0];
+        });
         return result;
     }
 
     public CoordSet union(CoordSet set){
-        CoordSet result = new CoordSet(set.w, set.h);
-        for(Integer y=0; y<numCellsY; y++){
-            for (Integer x=0; x< numCellsX; x++){
-                Long resultValue = -1L^((-1L^(vals[y][x].getLong())) & (-1L^(set.vals[y][x].getLong())));
-                result.vals[y][x].setValue(resultValue);
-                result.coordCount += Long.bitCount(resultValue);
+        CoordSet result = emptyLike(set.w, set.h);
+        result.addAll(this);
+        result.addAll(set);
+        return result;
+    }
+
+    //morphology, in place forms update this set and return it, coords outside the set are treated as absent
+    public CoordSet dilate(StructuringElement element) {
+        return dilate(this, element, this);
+    }
+
+    public CoordSet erode(StructuringElement element) {
+        return erode(this, element, this);
+    }
+
+    public CoordSet open(StructuringElement element) {
+        return open(this, element, this);
+    }
+
+    public CoordSet close(StructuringElement element) {
+        return close(this, element, this);
+    }
+
+    //destination forms write into dest, which may be source, and return dest
+    public static CoordSet dilate(CoordSet source, StructuringElement element, CoordSet dest) {
+        return source.morph(element, true, dest);
+    }
+
+    public static CoordSet erode(CoordSet source, StructuringElement element, CoordSet dest) {
+        return source.morph(element, false, dest);
+    }
+
+    public static CoordSet open(CoordSet source, StructuringElement element, CoordSet dest) {
+        return dest.morph(element, true, source.morph(element, false, dest));
+    }
+
+    public static CoordSet close(CoordSet source, StructuringElement element, CoordSet dest) {
+        return dest.morph(element, false, source.morph(element, true, dest));
+    }
+
+    //computes cell rows top to bottom, holding the source rows above, at and below the current one,
+    //so dest rows can be written once the row below has been read
+    private CoordSet morph(StructuringElement element, boolean dilate, CoordSet dest) {
+        checkCellSize("transformed");
+        checkSameDimensions(dest);
+        dest.modCount++;
+        long[][] rows = {new long[numCellsX], new long[numCellsX], new long[numCellsX]};
+        long[] result = new long[numCellsX];
+        long lastColumnMask = toX[(w - 1) % cellWidth];
+        long lastRowMask = toY[(h - 1) % cellHeight];
+        //rows of cells known to be empty, so that result rows with no occupied source row nearby are skipped
+        boolean[] empty = {true, loadRow(0, rows[1], true), loadRow(1, rows[2], true)};
+        int count = 0;
+        for (int cellY = 0; cellY < numCellsY; cellY++) {
+            boolean resultEmpty = empty[0] && empty[1] && empty[2];
+            if (!resultEmpty) {
+                for (int cellX = 0; cellX < numCellsX; cellX++) {
+                    result[cellX] = dilate ? element.dilate(rows, cellX) : element.erode(rows, cellX);
+                }
+                result[numCellsX - 1] &= lastColumnMask;
+                if (cellY == numCellsY - 1) {
+                    for (int cellX = 0; cellX < numCellsX; cellX++) {
+                        result[cellX] &= lastRowMask;
+                    }
+                }
+            }
+            long[] recycled = rows[0];
+            boolean recycledEmpty = empty[0];
+            rows[0] = rows[1];
+            rows[1] = rows[2];
+            rows[2] = recycled;
+            empty[0] = empty[1];
+            empty[1] = empty[2];
+            empty[2] = loadRow(cellY + 2, rows[2], recycledEmpty);
+            if (resultEmpty) {
+                if (!dest.cells.isRowEmpty(cellY)) {
+                    dest.cells.forEachNonEmpty(0, cellY, numCellsX - 1, cellY, (x, y, value) -> {
+                        dest.cells.set(x, y, 0L);
+                        return true;
+                    });
+                }
+                continue;
+            }
+            for (int cellX = 0; cellX < numCellsX; cellX++) {
+                if (dest.cells.get(cellX, cellY) != result[cellX]) {
+                    dest.cells.set(cellX, cellY, result[cellX]);
+                }
+                count += Long.bitCount(result[cellX]);
             }
         }
-        return result;
+        dest.coordCount = count;
+        return dest;
+    }
+
+    //loads the row of cells into row, returning true if it is empty; an already cleared row is not cleared again
+    private boolean loadRow(int cellY, long[] row, boolean rowCleared) {
+        if (cellY < numCellsY && !cells.isRowEmpty(cellY)) {
+            cells.getCells(cellY * numCellsX, LongBuffer.wrap(row));
+            return false;
+        }
+        if (!rowCleared) {
+            Arrays.fill(row, 0L);
+        }
+        return true;
+    }
+
+    //in place forms, each updates this set and returns it so that expressions can be chained without allocating
+    public CoordSet and(CoordSet other) {
+        return combine(CellOperation.AND, other);
+    }
+
+    public CoordSet or(CoordSet other) {
+        return combine(CellOperation.OR, other);
+    }
+
+    public CoordSet xor(CoordSet other) {
+        return combine(CellOperation.XOR, other);
+    }
+
+    public CoordSet andNot(CoordSet other) {
+        return combine(CellOperation.AND_NOT, other);
+    }
+
+    public CoordSet symmetricDifference(CoordSet other) {
+        return xor(other);
+    }
+
+    //destination forms, each writes the result of a op b into dest and returns dest, dest may be a or b
+    public static CoordSet and(CoordSet a, CoordSet b, CoordSet dest) {
+        return dest == b ? dest.and(a) : dest.assign(a).and(b);
+    }
+
+    public static CoordSet or(CoordSet a, CoordSet b, CoordSet dest) {
+        return dest == b ? dest.or(a) : dest.assign(a).or(b);
+    }
+
+    public static CoordSet xor(CoordSet a, CoordSet b, CoordSet dest) {
+        return dest == b ? dest.xor(a) : dest.assign(a).xor(b);
+    }
+
+    public static CoordSet andNot(CoordSet a, CoordSet b, CoordSet dest) {
+        //a & ~b == (a & b) ^ a, which only needs b's cells when dest is b
+        return dest == b ? dest.and(a).xor(a) : dest.assign(a).andNot(b);
+    }
+
+    public static CoordSet symmetricDifference(CoordSet a, CoordSet b, CoordSet dest) {
+        return xor(a, b, dest);
+    }
+
+    //replaces the coords of this set with the coords of source
+    private CoordSet assign(CoordSet source) {
+        if (source == this) {
+            return this;
+        }
+        checkSameDimensions(source);
+        modCount++;
+        if (cells.isDense() && source.cells.isDense()) {
+            //dense stores are copied in a plain cell loop, so that chained expressions allocate nothing
+            for (int cellY = 0; cellY < numCellsY; cellY++) {
+                for (int cellX = 0; cellX < numCellsX; cellX++) {
+                    cells.set(cellX, cellY, source.cells.get(cellX, cellY));
+                }
+            }
+        } else {
+            cells.forEachNonEmpty((x, y, value) -> {
+                cells.set(x, y, 0L);
+                return true;
+            });
+            source.cells.forEachNonEmpty((x, y, value) -> {
+                cells.set(x, y, value);
+                return true;
+            });
+        }
+        coordCount = source.coordCount;
+        return this;
+    }
+
+    private CoordSet combine(CellOperation operation, CoordSet other) {
+        checkSameDimensions(other);
+        modCount++;
+        if (cells.isDense() && other.cells.isDense()) {
+            //dense stores are combined in a plain cell loop with the count delta in a local, so nothing is allocated
+            int delta = 0;
+            for (int cellY = 0; cellY < numCellsY; cellY++) {
+                for (int cellX = 0; cellX < numCellsX; cellX++) {
+                    long beforeVal = cells.get(cellX, cellY);
+                    long afterVal = operation.applyAsLong(beforeVal, other.cells.get(cellX, cellY));
+                    if (beforeVal != afterVal) {
+                        cells.set(cellX, cellY, afterVal);
+                        delta += Long.bitCount(afterVal) - Long.bitCount(beforeVal);
+                    }
+                }
+            }
+            coordCount += delta;
+            return this;
+        }
+        //cells empty in the visited store are unchanged by the operation, so only its occupied cells are read
+        int[] delta = {0};
+        CellStore visited = operation.visitsTarget ? cells : other.cells;
+        visited.forEachNonEmpty((x, y, value) -> {
+            long beforeVal = cells.get(x, y);
+            long afterVal = operation.applyAsLong(beforeVal, other.cells.get(x, y));
+            if (beforeVal != afterVal) {
+                cells.set(x, y, afterVal);
+                delta[0] += Long.bitCount(afterVal) - Long.bitCount(beforeVal);
+            }
+            return true;
+        });
+        coordCount += delta[0];
+        return this;
+    }
+
+    private void checkSameDimensions(CoordSet other) {
+        if (!w.equals(other.w) || !h.equals(other.h)) {
+            throw new IllegalArgumentException("Dimension " + other.w + "x" + other.h + " does not match " + w + "x" + h);
+        }
+    }
+
+    private enum CellOperation implements LongBinaryOperator {
+        AND(true) {
+            public long applyAsLong(long target, long other) { return target & other; }
+        },
+        OR(false) {
+            public long applyAsLong(long target, long other) { return target | other; }
+        },
+        XOR(false) {
+            public long applyAsLong(long target, long other) { return target ^ other; }
+        },
+        AND_NOT(true) {
+            public long applyAsLong(long target, long other) { return target & ~other; }
+        };
+
+        //true if the result is empty wherever the target cell is empty, otherwise wherever the other cell is empty
+        private final boolean visitsTarget;
+
+        CellOperation(boolean visitsTarget) {
+            this.visitsTarget = visitsTarget;
+        }
     }
 
     public Long decompress(Long compressedValue, Long xCompressionBit, Long yCompressionBit) {
@@ -737,7 +1353,7 @@ public class CoordSet<T> implements ProjectTarget<T, Long> {
     public CompressionInfo getCompressionInfo() { return compressionInfo; }
 
     public CoordSet scale(CompressionInfo info) {
-        CoordSet result = new CoordSet(info.originalWidth(), info.originalHeight());
+        CoordSet result = emptyLike(info.originalWidth(), info.originalHeight());
 
         Long xCompressBit, yCompressBit;
         Integer xCompressBitCount, yCompressBitCount;
@@ -763,7 +1379,7 @@ public class CoordSet<T> implements ProjectTarget<T, Long> {
                 }
                 Long compressed = extract(x, y, compressedLengthX, compressedLengthY);
                 Long decompressed = decompress(compressed, xCompressBit, yCompressBit);
-                result.vals[cellY][cellX].setValue(decompressed);
+                result.cells.set(cellX, cellY, decompressed);
                 result.coordCount += Long.bitCount(decompressed);
                 y += yCompressBitCount;
 
@@ -774,54 +1390,54 @@ public class CoordSet<T> implements ProjectTarget<T, Long> {
     }
 
     Long transpose(Long val, Integer orientation){
-        LongUnaryOperator clearLowestOneBit = l -> l^Long.lowestOneBit(l);
-        LongUnaryOperator targetBitIndex = orientation == 0 ? i -> 8*(7-(i%8))+i/8
-                : i -> (i % 8)*8 + (7-(i/8)) ;
-        LongUnaryOperator shiftToTarget = i -> 1L << i;
+        return orientation == 0 ? Long.reverseBytes(transposeCell(val)) : transposeCell(Long.reverseBytes(val));
+    }
 
-        return LongStream.iterate(val, clearLowestOneBit)
-                .limit(Long.bitCount(val))
-                .map(Long::numberOfTrailingZeros)
-                .map(targetBitIndex)
-                .map(shiftToTarget)
-                .boxed()
-                .reduce((a,b) -> a|b)
-                .orElse(0L);
+    //swaps bit (x, y) with bit (y, x) of an 8x8 cell, exchanging 2x2, then 4x4 blocks of bits along the diagonal with delta swaps
+    static long transposeCell(long val) {
+        long t = (val ^ (val >>> 7)) & 0x00AA00AA00AA00AAL;
+        val ^= t ^ (t << 7);
+        t = (val ^ (val >>> 14)) & 0x0000CCCC0000CCCCL;
+        val ^= t ^ (t << 14);
+        t = (val ^ (val >>> 28)) & 0x00000000F0F0F0F0L;
+        return val ^ t ^ (t << 28);
     }
 
     public CoordSet transpose(Integer orientation){
-        CoordSet result = new CoordSet(h, w);
-
-        for (Integer cellX=0; cellX < result.numCellsX; cellX++){
-            for (Integer cellY=0; cellY < result.numCellsY; cellY++){
-                Long val = orientation == 0 ? vals[cellX][numCellsX-cellY-1].getLong()
-                        : vals[numCellsY-cellX-1][cellY].getLong();
-
-                result.vals[cellY][cellX].setValue(transpose(val, orientation));
-            }
-        }
-
-        Boolean shiftNeeded = (orientation == 0 ? w : h) % 8 > 0;
-        if (shiftNeeded) {
-            Integer xShiftAmount = 0;
-            Integer yShiftAmount = 0;
-
-            if (orientation == 0) {
-                yShiftAmount = cellWidth - w % cellWidth;
+        CoordSet result = emptyLike(h, w);
+        CellStore resultCells = result.cells;
+        int resultNumCellsX = result.numCellsX;
+        int resultNumCellsY = result.numCellsY;
+        boolean rotateLeft = orientation == 0;
+
+        //each rotated cell is moved by whole cells in one axis and by the offset of the grid's partial edge cell in the other,
+        //so it lands in at most two result cells
+        cells.forEachNonEmpty((cellX, cellY, value) -> {
+            long rotated = rotateLeft ? Long.reverseBytes(transposeCell(value)) : transposeCell(Long.reverseBytes(value));
+            int offset = rotateLeft ? w - 8 * (cellX + 1) : h - 8 * (cellY + 1);
+            int resultCell = Math.floorDiv(offset, 8);
+            int shift = Math.floorMod(offset, 8);
+            long lower;
+            long upper;
+            if (rotateLeft) {
+                lower = rotated << 8 * shift;
+                upper = shift == 0 ? 0L : rotated >>> 8 * (8 - shift);
             } else {
-                xShiftAmount = cellHeight - h % cellHeight;
+                lower = (rotated << shift) & fromX[shift];
+                upper = shift == 0 ? 0L : (rotated >>> 8 - shift) & toX[shift - 1];
             }
-
-            for (Integer x=0; x < result.getWidth(); x += cellWidth){
-                for (Integer y=0; y < result.getHeight(); y += cellHeight){
-                    Integer cellWidth = min(result.getWidth(), x + this.cellWidth) - x;
-                    Integer cellHeight = min(result.getHeight(), y + this.cellHeight) - y;
-                    Long shiftedVal = result.extract(x + xShiftAmount, y+yShiftAmount, cellWidth, cellHeight);
-                    CellValue cellValue = result.vals[y/ this.cellHeight][x/ this.cellWidth];
-                    cellValue.setValue(shiftedVal);
-                }
+            int resultX = rotateLeft ? cellY : resultCell;
+            int resultY = rotateLeft ? resultCell : cellX;
+            if (resultCell >= 0 && lower != 0L) {
+                resultCells.set(resultX, resultY, resultCells.get(resultX, resultY) | lower);
             }
-        }
+            if (upper != 0L && resultCell + 1 < (rotateLeft ? resultNumCellsY : resultNumCellsX)) {
+                int nextX = rotateLeft ? resultX : resultX + 1;
+                int nextY = rotateLeft ? resultY + 1 : resultY;
+                resultCells.set(nextX, nextY, resultCells.get(nextX, nextY) | upper);
+            }
+            return true;
+        });
 
         result.coordCount = coordCount;
         return result;
@@ -833,14 +1449,14 @@ public class CoordSet<T> implements ProjectTarget<T, Long> {
         Integer cellX = x / cellWidth;
         Integer cellY = y / cellHeight;
 
-        Long value = shift(vals[cellY][cellX].getLong(), -offsetX, -offsetY) ;
+        Long value = shift(cells.get(cellX, cellY), -offsetX, -offsetY) ;
 
 
         Boolean nextX = cellX < numCellsX - 1 && (offsetX > (cellWidth - lengthX));
         Boolean nextY = cellY < numCellsY - 1 && (offsetY > (cellHeight - lengthY));
-        if (nextX) value |= shift(vals[cellY][cellX+1].getLong(), 8-offsetX, -offsetY);
-        if (nextY) value |= shift(vals[cellY+1][cellX].getLong(), -offsetX, 8-offsetY);
-        if (nextX && nextY) value |= shift(vals[cellY+1][cellX+1].getLong(), 8-offsetX, 8-offsetY);
+        if (nextX) value |= shift(cells.get(cellX+1, cellY), 8-offsetX, -offsetY);
+        if (nextY) value |= shift(cells.get(cellX, cellY+1), -offsetX, 8-offsetY);
+        if (nextX && nextY) value |= shift(cells.get(cellX+1, cellY+1), 8-offsetX, 8-offsetY);
 
         if (cellX == numCellsX-1 && (offsetX > (cellWidth - lengthX))) {
             value |= (-1L^value) & (fromX[(w-1)% cellWidth] & toX[(w-1)% cellWidth]);
@@ -857,131 +1473,423 @@ public class CoordSet<T> implements ProjectTarget<T, Long> {
     }
 
     public CoordSet filter(Integer x1, Integer y1, Integer x2, Integer y2) {
-        CoordSet result = new CoordSet(w, h);
+        CoordSet result = emptyLike(w, h);
         if (coordCount > 0) {
-            for (Integer cellCordY = y1 - y1 % cellHeight; cellCordY <= y2 - y2 % cellHeight; cellCordY += cellHeight) {
-                for (Integer cellCoordX = x1 - x1 % cellWidth; cellCoordX <= x2 - x2 % cellWidth; cellCoordX += cellWidth) {
-                    Integer startX = Math.max(x1, cellCoordX) - cellCoordX;
-                    Integer startY = Math.max(y1, cellCordY) - cellCordY;
-                    Integer endX = min(x2, cellCoordX + cellWidth - 1) - cellCoordX;
-                    Integer endY = min(y2, cellCordY + cellHeight - 1) - cellCordY;
-
-                    Long mask = fromX[startX] & fromY[startY] & toX[endX] & toY[endY];
-                    CellValue cellValue = vals[cellCordY / cellHeight][cellCoordX / cellWidth];
-                    CellValue resultCellValue = result.vals[cellCordY / cellHeight][cellCoordX / cellWidth];
-                    Long value = mask & cellValue.getLong();
-                    resultCellValue.setValue(value);
+            cells.forEachNonEmpty(x1 / cellWidth, y1 / cellHeight, x2 / cellWidth, y2 / cellHeight, (cellX, cellY, cellValue) -> {
+                long value = cellValue & maskCell(cellX, cellY, x1, y1, x2, y2);
+                if (value != 0L) {
+                    result.cells.set(cellX, cellY, value);
                     result.coordCount += Long.bitCount(value);
                 }
-            }
+                return true;
+            });
         }
         return result;
     }
 
     public CoordSet copy(){
-        CoordSet result = new CoordSet(w, h);
+        CoordSet result = emptyLike(w, h);
         result.addAll(this);
         return result;
     }
 
     public void addAll(CoordSet other) {
-        Integer count = 0;
-        for(Integer y=0; y< numCellsY; y++){
-            for (Integer x=0; x< numCellsX; x++){
-                CellValue cellValue = vals[y][x];
-                Long beforeVal = cellValue.getLong();
-                Long afterVal = beforeVal | other.vals[y][x].getLong();
-                cellValue.setValue(afterVal);
-                count += Long.bitCount(beforeVal ^ afterVal);
-            }
-        }
-        coordCount += count;
+        modCount++;
+        coordCount += forEachBand(other, (cellY1, cellY2) -> {
+            int[] count = {0};
+            other.cells.forEachNonEmpty(0, cellY1, numCellsX - 1, cellY2, (x, y, value) -> {
+                long beforeVal = cells.get(x, y);
+                long afterVal = beforeVal | value;
+                if (beforeVal != afterVal) {
+                    cells.set(x, y, afterVal);
+                    count[0] += Long.bitCount(beforeVal ^ afterVal);
+                }
+                return true;
+            });
+            return count[0];
+        });
     }
 
     public Integer removeAll(CoordSet other) {
-        Integer count = 0;
-        for(Integer y=0; y< numCellsY; y++){
-            for (Integer x=0; x< numCellsX; x++){
-                CellValue cellValue = vals[y][x];
-                CellValue otherCellValue = other.vals[y][x];
-                Long beforeVal = cellValue.getLong();
-                Long afterVal = beforeVal & (-1L^otherCellValue.getLong());
-                cellValue.setValue(afterVal);
-                count += Long.bitCount(beforeVal ^ afterVal);
+        modCount++;
+        Integer removed = forEachBand(other, (cellY1, cellY2) -> {
+            int[] count = {0};
+            cells.forEachNonEmpty(0, cellY1, numCellsX - 1, cellY2, (x, y, value) -> {
+                long afterVal = value & (-1L^other.cells.get(x, y));
+                if (value != afterVal) {
+                    cells.set(x, y, afterVal);
+                    count[0] += Long.bitCount(value ^ afterVal);
+                }
+                return true;
+            });
+            return count[0];
+        });
+        coordCount -= removed;
+        return removed;
+    }
+
+    //visits every coord, cell by cell in row major order of cells and of coords within a cell
+    public void forEach(IntBinaryConsumer action) {
+        cells.forEachNonEmpty((cellX, cellY, cellValue) -> {
+            int startX = cellX * cellWidth;
+            int startY = cellY * cellHeight;
+            for (long bits = cellValue; bits != 0L; bits &= bits - 1) {
+                int i = Long.numberOfTrailingZeros(bits);
+                action.accept(startX + i % cellWidth, startY + i / cellWidth);
+            }
+            return true;
+        });
+    }
+
+    //coords in the same order as forEach, each packed by pack(x, y)
+    public PrimitiveIterator.OfLong iterator() {
+        return new CoordSpliterator(0, numCellsX * numCellsY);
+    }
+
+    public Spliterator.OfLong spliterator() {
+        return new CoordSpliterator(0, numCellsX * numCellsY);
+    }
+
+    public LongStream coords() {
+        return StreamSupport.longStream(spliterator(), false);
+    }
+
+    public static long pack(int x, int y) {
+        return (long) x << 32 | (y & 0xFFFFFFFFL);
+    }
+
+    public static int unpackX(long coord) {
+        return (int) (coord >>> 32);
+    }
+
+    public static int unpackY(long coord) {
+        return (int) coord;
+    }
+
+    //iterates the set bits of cells in the row major cell index range [cellIndex, endCellIndex)
+    class CoordSpliterator implements Spliterator.OfLong, PrimitiveIterator.OfLong {
+        private int cellIndex;
+        private final int endCellIndex;
+        private long bits;
+        private int startX;
+        private int startY;
+
+        CoordSpliterator(int cellIndex, int endCellIndex) {
+            this.cellIndex = cellIndex;
+            this.endCellIndex = endCellIndex;
+        }
+
+        //moves to the next cell with a set bit, returns false if there is none left
+        private boolean loadBits() {
+            while (bits == 0L) {
+                cellIndex = cellIndex < endCellIndex ? cells.nextNonEmpty(cellIndex, endCellIndex) : endCellIndex;
+                if (cellIndex >= endCellIndex) {
+                    return false;
+                }
+                int cellX = cellIndex % numCellsX;
+                int cellY = cellIndex / numCellsX;
+                bits = cells.get(cellX, cellY);
+                startX = cellX * cellWidth;
+                startY = cellY * cellHeight;
+                cellIndex++;
             }
+            return true;
+        }
+
+        private long next(long bits) {
+            int i = Long.numberOfTrailingZeros(bits);
+            return pack(startX + i % cellWidth, startY + i / cellWidth);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return loadBits();
+        }
+
+        @Override
+        public long nextLong() {
+            if (!loadBits()) {
+                throw new NoSuchElementException();
+            }
+            long coord = next(bits);
+            bits &= bits - 1;
+            return coord;
+        }
+
+        @Override
+        public boolean tryAdvance(LongConsumer action) {
+            if (!loadBits()) {
+                return false;
+            }
+            action.accept(next(bits));
+            bits &= bits - 1;
+            return true;
+        }
+
+        @Override
+        public void forEachRemaining(LongConsumer action) {
+            for (; bits != 0L; bits &= bits - 1) {
+                action.accept(next(bits));
+            }
+            if (cellIndex >= endCellIndex) {
+                return;
+            }
+            //visit the remaining partial first row, whole rows and partial last row through the store, which skips empty cells
+            int lastIndex = endCellIndex - 1;
+            int firstRow = cellIndex / numCellsX;
+            int lastRow = lastIndex / numCellsX;
+            CellStore.CellVisitor visitor = (cellX, cellY, cellValue) -> {
+                int x = cellX * cellWidth;
+                int y = cellY * cellHeight;
+                for (long remaining = cellValue; remaining != 0L; remaining &= remaining - 1) {
+                    int i = Long.numberOfTrailingZeros(remaining);
+                    action.accept(pack(x + i % cellWidth, y + i / cellWidth));
+                }
+                return true;
+            };
+            if (firstRow == lastRow) {
+                cells.forEachNonEmpty(cellIndex % numCellsX, firstRow, lastIndex % numCellsX, lastRow, visitor);
+            } else {
+                cells.forEachNonEmpty(cellIndex % numCellsX, firstRow, numCellsX - 1, firstRow, visitor);
+                if (lastRow - firstRow > 1) {
+                    cells.forEachNonEmpty(0, firstRow + 1, numCellsX - 1, lastRow - 1, visitor);
+                }
+                cells.forEachNonEmpty(0, lastRow, lastIndex % numCellsX, lastRow, visitor);
+            }
+            cellIndex = endCellIndex;
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super Long> action) {
+            forEachRemaining((LongConsumer) action::accept);
+        }
+
+        @Override
+        public Spliterator.OfLong trySplit() {
+            int remaining = endCellIndex - cellIndex;
+            if (remaining < 2) {
+                return null;
+            }
+            //hands the prefix, including bits left in the current cell, to the new spliterator
+            int mid = cellIndex + remaining / 2;
+            CoordSpliterator prefix = new CoordSpliterator(cellIndex, mid);
+            prefix.bits = bits;
+            prefix.startX = startX;
+            prefix.startY = startY;
+            bits = 0L;
+            cellIndex = mid;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            long totalCells = (long) numCellsX * numCellsY;
+            return totalCells == 0 ? 0 : Long.bitCount(bits) + (long) coordCount * (endCellIndex - cellIndex) / totalCells;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | DISTINCT | NONNULL;
         }
-        coordCount -= count;
-        return count;
     }
 
     public <R, S> void project(ProjectTarget<R, S> target, R value){
-        for (Integer startY = 0; startY < h; startY += cellHeight) {
-            for (Integer startX = 0; startX < w; startX += cellWidth) {
-                Integer endY = min(startY + cellHeight, h);
-                Integer endX = min(startX + cellWidth, w);
-                CellValue cellValue = vals[startY/ cellHeight][startX/ cellWidth];
-
-                for (Integer y = startY; y < endY; y++){
-                    Optional<Integer> rangeStartX = Optional.empty();
-                    Integer count=0;
-                    for (Integer x = startX; x < endX; x++) {
-                        Integer i = (y - startY) * cellWidth + x - startX;
-                        if (!Objects.equals(0L, (1L<<i) & cellValue.getLong())) {
-                            if (!rangeStartX.isPresent()) {
-                                rangeStartX = Optional.of(x);
-                            }
-                            count++;
-                        } else {
-                            if (rangeStartX.isPresent()) {
-                                Integer rangeStart = rangeStartX.get();
-                                Integer rangeEnd = rangeStart+count-1;
-                                target.updateRange(rangeStart, y, rangeEnd, y, value);
-                                rangeStartX = Optional.empty();
-                                count = 0;
-                            }
-                        }
-                    }
-                    if (rangeStartX.isPresent()) {
-                        Integer rangeStart = rangeStartX.get();
-                        Integer rangeEnd = rangeStart+count-1;
-                        target.updateRange(rangeStart, y, rangeEnd, y, value);
-                    }
+        forEachRun((x1, x2, y) -> target.updateRange(x1, y, x2, y, value));
+    }
+
+    public <R> void project(R[][] target, R value){
+        forEachRun((x1, x2, y) -> Arrays.fill(target[y], x1, x2 + 1, value));
+    }
+
+    //projects the coords as rectangles, formed by stacking runs with the same horizontal extent on consecutive rows
+    public <R, S> void projectRectangles(ProjectTarget<R, S> target, R value){
+        RectangleProjection<R> projection = new RectangleProjection<>(target, value);
+        forEachRun(projection);
+        projection.finish();
+    }
+
+    //batches closed rectangles for ProjectTarget.updateRanges
+    static class RectangleProjection<R> implements RunConsumer {
+        private static final int BATCH_SIZE = 256;
+
+        private final ProjectTarget<R, ?> target;
+        private final R value;
+        private final int[] x1 = new int[BATCH_SIZE];
+        private final int[] y1 = new int[BATCH_SIZE];
+        private final int[] x2 = new int[BATCH_SIZE];
+        private final int[] y2 = new int[BATCH_SIZE];
+        private int batched;
+
+        //open rectangles ending on the previous row and continued on the current row, both in increasing x
+        private int[] prevX1 = new int[16];
+        private int[] prevX2 = new int[16];
+        private int[] prevY1 = new int[16];
+        private int prevCount;
+        private int[] curX1 = new int[16];
+        private int[] curX2 = new int[16];
+        private int[] curY1 = new int[16];
+        private int curCount;
+        private int prevIndex;
+        private int y = -1;
+
+        RectangleProjection(ProjectTarget<R, ?> target, R value) {
+            this.target = target;
+            this.value = value;
+        }
+
+        @Override
+        public void accept(int runX1, int runX2, int runY) {
+            if (runY != y) {
+                nextRow(runY);
+            }
+            while (prevIndex < prevCount && prevX1[prevIndex] < runX1) {
+                close(prevIndex++, y - 1);
+            }
+            int fromY = runY;
+            if (prevIndex < prevCount && prevX1[prevIndex] == runX1 && prevX2[prevIndex] == runX2) {
+                fromY = prevY1[prevIndex++];
+            }
+            if (curCount == curX1.length) {
+                curX1 = Arrays.copyOf(curX1, curCount * 2);
+                curX2 = Arrays.copyOf(curX2, curCount * 2);
+                curY1 = Arrays.copyOf(curY1, curCount * 2);
+            }
+            curX1[curCount] = runX1;
+            curX2[curCount] = runX2;
+            curY1[curCount] = fromY;
+            curCount++;
+        }
+
+        private void nextRow(int nextY) {
+            while (prevIndex < prevCount) {
+                close(prevIndex++, y - 1);
+            }
+            int[] swap = prevX1; prevX1 = curX1; curX1 = swap;
+            swap = prevX2; prevX2 = curX2; curX2 = swap;
+            swap = prevY1; prevY1 = curY1; curY1 = swap;
+            prevCount = curCount;
+            curCount = 0;
+            prevIndex = 0;
+            //rectangles of the last row can only continue onto the row right below it
+            if (nextY != y + 1) {
+                while (prevIndex < prevCount) {
+                    close(prevIndex++, y);
                 }
             }
+            y = nextY;
+        }
+
+        private void close(int index, int toY) {
+            x1[batched] = prevX1[index];
+            y1[batched] = prevY1[index];
+            x2[batched] = prevX2[index];
+            y2[batched] = toY;
+            if (++batched == BATCH_SIZE) {
+                flush();
+            }
+        }
+
+        private void flush() {
+            if (batched > 0) {
+                target.updateRanges(x1, y1, x2, y2, batched, value);
+                batched = 0;
+            }
+        }
+
+        void finish() {
+            nextRow(y + 2);
+            flush();
         }
     }
 
-    public <R> void project(R[][] target, R value){
-        for (Integer startY = 0; startY < h; startY += cellHeight) {
-            for (Integer startX = 0; startX < w; startX += cellWidth) {
-                Integer endX = min(startX + cellWidth, w);
-                Integer endY = min(startY + cellHeight, h);
-                CellValue cellValue = vals[startY/ cellHeight][startX/ cellWidth];
-                for (Integer y = startY; y < endY; y++){
-                    for (Integer x = startX; x < endX; x++) {
-                        Integer i = (y - startY) * cellWidth + x - startX;
-                        if (!Objects.equals(0L, (1L<<i) & cellValue.getLong())) {
-                            target[y][x] = value;
+    //connected components of the coords, for 4 or 8 connectivity
+    public ConnectedComponents components(Integer connectivity) {
+        return ConnectedComponents.of(this, connectivity);
+    }
+
+    //visits every maximal horizontal run of coords once, row by row, merging runs that continue into the next cell
+    void forEachRun(RunConsumer consumer) {
+        int[] rowCellXs = new int[numCellsX];
+        long[] rowCellValues = new long[numCellsX];
+        for (int cellY = 0; cellY < numCellsY; cellY++) {
+            int rowCellCount = nonEmptyCellsInRow(cellY, rowCellXs, rowCellValues);
+            if (rowCellCount == 0) {
+                continue;
+            }
+            int startY = cellY * cellHeight;
+            int endY = min(startY + cellHeight, h);
+            for (int y = startY; y < endY; y++) {
+                int shift = (y - startY) * cellWidth;
+                int runStart = -1;
+                int prevCellX = -2;
+                for (int i = 0; i < rowCellCount; i++) {
+                    int cellX = rowCellXs[i];
+                    int startX = cellX * cellWidth;
+                    long line = (rowCellValues[i] >>> shift) & 0xFFL;
+                    if (runStart >= 0 && (cellX != prevCellX + 1 || (line & 1L) == 0L)) {
+                        consumer.accept(runStart, prevCellX * cellWidth + cellWidth - 1, y);
+                        runStart = -1;
+                    }
+                    while (line != 0L) {
+                        int from = Long.numberOfTrailingZeros(line);
+                        int to = Long.numberOfTrailingZeros(~(line >>> from)) + from;
+                        if (runStart < 0) {
+                            runStart = startX + from;
+                        }
+                        if (to < cellWidth) {
+                            consumer.accept(runStart, startX + to - 1, y);
+                            runStart = -1;
                         }
+                        line &= -1L << to;
                     }
+                    prevCellX = cellX;
+                }
+                if (runStart >= 0) {
+                    consumer.accept(runStart, prevCellX * cellWidth + cellWidth - 1, y);
                 }
             }
         }
     }
 
+    //collects the non-empty cells of a row of cells in increasing x, returning the number of cells
+    private int nonEmptyCellsInRow(int cellY, int[] cellXs, long[] cellValues) {
+        int[] count = {0};
+        boolean[] ordered = {true};
+        cells.forEachNonEmpty(0, cellY, numCellsX - 1, cellY, (cellX, y, value) -> {
+            if (count[0] > 0 && cellXs[count[0] - 1] > cellX) {
+                ordered[0] = false;
+            }
+            cellXs[count[0]++] = cellX;
+            return true;
+        });
+        if (!ordered[0]) {
+            Arrays.sort(cellXs, 0, count[0]);
+        }
+        for (int i = 0; i < count[0]; i++) {
+            cellValues[i] = cells.get(cellXs[i], cellY);
+        }
+        return count[0];
+    }
+
+    @FunctionalInterface
+    interface RunConsumer {
+        void accept(int x1, int x2, int y);
+    }
+
     private Integer applyBitOperationAt(Integer x, Integer y, LongBinaryOperator operation) {
-        Integer cellX = x/ cellWidth;
-        Integer cellY = y/ cellHeight;
-        CellValue cellValue = vals[cellY][cellX];
-        Long mask = 1L << (y%cellHeight)* cellWidth + x% cellWidth;
-        Long beforeVal = cellValue.getLong();
-        Long afterVal = operation.applyAsLong(mask, beforeVal);
-        cellValue.setValue(afterVal);
+        int cellX = x/ cellWidth;
+        int cellY = y/ cellHeight;
+        long mask = 1L << (y%cellHeight)* cellWidth + x% cellWidth;
+        long beforeVal = cells.get(cellX, cellY);
+        long afterVal = operation.applyAsLong(mask, beforeVal);
+        cells.set(cellX, cellY, afterVal);
+        modCount++;
         return Long.bitCount(beforeVal ^ afterVal);
     }
 
     private Integer applyBitOperationInRegion(Integer x1, Integer y1, Integer x2, Integer y2, LongBinaryOperator operation) {
         Integer count = 0;
+        modCount++;
 
         for (Integer cellCordY = y1 - y1 % cellHeight; cellCordY <= y2 - y2 % cellHeight; cellCordY+= cellHeight) {
             for (Integer cellCoordX = x1 - x1 % cellWidth; cellCoordX <= x2 - x2 % cellWidth; cellCoordX+= cellWidth) {
@@ -990,11 +1898,12 @@ public class CoordSet<T> implements ProjectTarget<T, Long> {
                 Integer endX = min(x2, cellCoordX + cellWidth - 1) - cellCoordX;
                 Integer endY = min(y2, cellCordY + cellHeight - 1) - cellCordY;
 
-                CellValue cellValue = vals[cellCordY/ cellHeight][cellCoordX/ cellWidth];
-                Long mask = fromX[startX] & fromY[startY] & toX[endX] & toY[endY];
-                Long beforeVal = cellValue.getLong();
-                Long afterVal = operation.applyAsLong(mask, beforeVal);
-                cellValue.setValue(afterVal);
+                int cellX = cellCoordX/ cellWidth;
+                int cellY = cellCordY/ cellHeight;
+                long mask = fromX[startX] & fromY[startY] & toX[endX] & toY[endY];
+                long beforeVal = cells.get(cellX, cellY);
+                long afterVal = operation.applyAsLong(mask, beforeVal);
+                cells.set(cellX, cellY, afterVal);
                 count += Long.bitCount(beforeVal ^ afterVal);
             }
         }
@@ -1010,21 +1919,131 @@ public class CoordSet<T> implements ProjectTarget<T, Long> {
                 if (cellX > 0) {
                     sb.append(",");
                 }
-                sb.append(vals[cellY][cellX].getLong());
+                sb.append(cells.get(cellX, cellY));
             }
         }
         return Base64.getEncoder().encodeToString(sb.toString().getBytes());
     }
 
+    //number of bytes written by writeTo, laid out as described by CellFormat
+    public long serializedSize() {
+        return CellFormat.size(w, h);
+    }
+
+    public void writeTo(ByteBuffer buffer) {
+        checkCellSize("serialized");
+        int size = Math.toIntExact(serializedSize());
+        if (buffer.remaining() < size) {
+            throw new BufferOverflowException();
+        }
+        ByteBuffer out = CellFormat.littleEndian(buffer);
+        CellFormat.writeHeader(out, 0, w, h, coordCount);
+        out.position(CellFormat.HEADER_SIZE);
+        LongBuffer words = CellFormat.littleEndian(out).asLongBuffer();
+        words.limit(numCellsX * numCellsY);
+        cells.getCells(0, words);
+        buffer.position(buffer.position() + size);
+    }
+
+    public static <T> CoordSet<T> readFrom(ByteBuffer buffer) {
+        ByteBuffer in = CellFormat.littleEndian(buffer);
+        CellFormat.checkHeader(in, 0);
+        Integer width = CellFormat.width(in, 0);
+        Integer height = CellFormat.height(in, 0);
+        long size = CellFormat.size(width, height);
+        if (in.remaining() < size) {
+            throw new BufferUnderflowException();
+        }
+        CellStore store = new HeapCellStore(numCells(width), numCells(height));
+        in.position(CellFormat.HEADER_SIZE);
+        LongBuffer words = CellFormat.littleEndian(in).asLongBuffer();
+        words.limit(numCells(width) * numCells(height));
+        store.setCells(0, words);
+        buffer.position(buffer.position() + (int) size);
+        return new CoordSet<>(width, height, store, headerCount(in));
+    }
+
+    //null when the header count is unknown, such as a mapped file changed without a force, so cells get recounted
+    private static Integer headerCount(ByteBuffer header) {
+        long count = CellFormat.coordCount(header, 0);
+        return count == CellFormat.UNKNOWN_COUNT ? null : (int) count;
+    }
+
+    public void writeTo(WritableByteChannel channel) {
+        checkCellSize("serialized");
+        int totalCells = numCellsX * numCellsY;
+        ByteBuffer chunk = ByteBuffer.allocate(Long.BYTES * Math.max(4, min(totalCells, SERIALIZED_CHUNK_CELLS)))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            CellFormat.writeHeader(chunk, 0, w, h, coordCount);
+            chunk.limit(CellFormat.HEADER_SIZE);
+            writeFully(channel, chunk);
+            for (int fromIndex = 0; fromIndex < totalCells; fromIndex += SERIALIZED_CHUNK_CELLS) {
+                int chunkCells = min(totalCells - fromIndex, SERIALIZED_CHUNK_CELLS);
+                chunk.clear();
+                LongBuffer words = chunk.asLongBuffer();
+                words.limit(chunkCells);
+                cells.getCells(fromIndex, words);
+                chunk.limit(chunkCells * Long.BYTES);
+                writeFully(channel, chunk);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public static <T> CoordSet<T> readFrom(ReadableByteChannel channel) {
+        try {
+            ByteBuffer header = ByteBuffer.allocate(CellFormat.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, header);
+            CellFormat.checkHeader(header, 0);
+            Integer width = CellFormat.width(header, 0);
+            Integer height = CellFormat.height(header, 0);
+            int totalCells = numCells(width) * numCells(height);
+            CellStore store = new HeapCellStore(numCells(width), numCells(height));
+            ByteBuffer chunk = ByteBuffer.allocate(Long.BYTES * min(totalCells, SERIALIZED_CHUNK_CELLS)).order(ByteOrder.LITTLE_ENDIAN);
+            for (int fromIndex = 0; fromIndex < totalCells; fromIndex += SERIALIZED_CHUNK_CELLS) {
+                chunk.clear();
+                chunk.limit(min(totalCells - fromIndex, SERIALIZED_CHUNK_CELLS) * Long.BYTES);
+                readFully(channel, chunk);
+                chunk.flip();
+                store.setCells(fromIndex, chunk.asLongBuffer());
+            }
+            return new CoordSet<>(width, height, store, headerCount(header));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void checkCellSize(String operation) {
+        if (cellHeight != 8) {
+            throw new UnsupportedOperationException("Only sets of 8x8 cells can be "+operation);
+        }
+    }
+
+    private static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static void readFully(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Coord set ended after " + buffer.position() + " of " + buffer.limit() + " bytes");
+            }
+        }
+    }
+
     public String getCellBinaryString(Integer cellX, Integer cellY){
-        return format(vals[cellY][cellX].getLong())
+        return format(cells.get(cellX, cellY))
                 .replace("0"," ")
                 .replace("1", "X")
                 ;
     }
 
     Long getAsLong(Integer cellX, Integer cellY) {
-        return vals[cellY][cellX].getLong();
+        return cells.get(cellX, cellY);
     }
 
     Integer getNumCellsX(){return numCellsX;}
@@ -1037,14 +2056,9 @@ public class CoordSet<T> implements ProjectTarget<T, Long> {
         if (o == null || o.getClass() != this.getClass()) return false;
         CoordSet other = (CoordSet)o;
         if (!Objects.equals(w, other.w) || !Objects.equals(h, other.h)) return false;
-        for (Integer y=0; y<numCellsY; y++) {
-            for (Integer x = 0; x < numCellsX; x++) {
-                if (!Objects.equals(vals[y][x].getLong(), other.vals[y][x].getLong())){
-                    return false;
-                }
-            }
-        }
-        return true;
+        //equal when every occupied cell of either set holds the same value in the other
+        return cells.forEachNonEmpty((x, y, value) -> other.cells.get(x, y) == value)
+                && other.cells.forEachNonEmpty((x, y, value) -> cells.get(x, y) == value);
     }
 
 
@@ -1065,8 +2079,9 @@ public class CoordSet<T> implements ProjectTarget<T, Long> {
         StringBuilder sb = new StringBuilder();
         for (Integer cellY = 0; cellY < numCellsY; cellY++){
             Integer rowH = h - cellY * cellHeight;
-            String rows = Arrays.stream(vals[cellY])
-                    .map(s-> format(s.getLong()))
+            final int y = cellY;
+            String rows = IntStream.range(0, numCellsX)
+                    .mapToObj(x -> format(cells.get(x, y)))
                     .map(s -> Arrays.asList(s.split("\n")))
                     .reduce((a,b) -> IntStream.range(0, a.size())
                             .mapToObj(i -> a.get(i).concat(b.get(i)))
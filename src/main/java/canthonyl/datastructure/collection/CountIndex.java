@@ -0,0 +1,135 @@
+package canthonyl.datastructure.collection;
+
+import canthonyl.datastructure.collection.store.CellStore;
+
+import static canthonyl.datastructure.collection.CoordSet.fromX;
+import static canthonyl.datastructure.collection.CoordSet.fromY;
+import static canthonyl.datastructure.collection.CoordSet.toX;
+import static canthonyl.datastructure.collection.CoordSet.toY;
+
+/**
+ * Prefix popcounts over the cells of a {@link CoordSet}, counting the coords of any rectangle in constant time.
+ * A summed-area table of whole cell counts covers the cells inside the rectangle, while the cells cut by its left and
+ * top edges are covered by running counts down each column and along each row of cells, one per offset at which an
+ * edge can cut a cell.  The at most four corner cells are counted directly.  The tables take about 60 bytes per cell,
+ * allocated once and refilled in place by {@link #rebuild()}, so the index only suits dense stores.
+ */
+class CountIndex {
+
+    private final CellStore cells;
+    private final int numCellsX;
+    private final int numCellsY;
+
+    //cellCounts[(cellY + 1) * (numCellsX + 1) + cellX + 1] counts cells [0, cellX] x [0, cellY]
+    private final int[] cellCounts;
+    //columnCounts[ox - 1][cellX * (numCellsY + 1) + cellY + 1] counts coords at or right of ox in cells [0, cellY] of the column
+    private final int[][] columnCounts;
+    //rowCounts[oy - 1][cellY * (numCellsX + 1) + cellX + 1] counts coords at or below oy in cells [0, cellX] of the row
+    private final int[][] rowCounts;
+
+    CountIndex(CellStore cells) {
+        this.cells = cells;
+        this.numCellsX = cells.getNumCellsX();
+        this.numCellsY = cells.getNumCellsY();
+        int stride = numCellsX + 1;
+        cellCounts = new int[stride * (numCellsY + 1)];
+        columnCounts = new int[7][numCellsX * (numCellsY + 1)];
+        rowCounts = new int[7][numCellsY * stride];
+        rebuild();
+    }
+
+    //refills the tables from the current cells; every entry is overwritten, so the tables need no clearing
+    void rebuild() {
+        int stride = numCellsX + 1;
+        for (int cellY = 0; cellY < numCellsY; cellY++) {
+            int rowTotal = 0;
+            for (int cellX = 0; cellX < numCellsX; cellX++) {
+                long value = cells.get(cellX, cellY);
+                rowTotal += Long.bitCount(value);
+                cellCounts[(cellY + 1) * stride + cellX + 1] = cellCounts[cellY * stride + cellX + 1] + rowTotal;
+                int column = cellX * (numCellsY + 1) + cellY;
+                int row = cellY * stride + cellX;
+                for (int offset = 1; offset < 8; offset++) {
+                    columnCounts[offset - 1][column + 1] = columnCounts[offset - 1][column] + Long.bitCount(value & fromX[offset]);
+                    rowCounts[offset - 1][row + 1] = rowCounts[offset - 1][row] + Long.bitCount(value & fromY[offset]);
+                }
+            }
+        }
+    }
+
+    //coords of the inclusive rectangle, which must lie within the set
+    int count(int x1, int y1, int x2, int y2) {
+        int cellX1 = x1 / 8, cellX2 = x2 / 8, cellY1 = y1 / 8, cellY2 = y2 / 8;
+        int fromBitX = x1 % 8, toBitX = x2 % 8, fromBitY = y1 % 8, toBitY = y2 % 8;
+        if (cellX1 == cellX2) {
+            if (cellY1 == cellY2) {
+                return Long.bitCount(cells.get(cellX1, cellY1) & fromX[fromBitX] & toX[toBitX] & fromY[fromBitY] & toY[toBitY]);
+            }
+            return corner(cellX1, cellY1, fromBitX, toBitX, fromBitY, 7)
+                    + column(cellX1, cellY1 + 1, cellY2 - 1, fromBitX, toBitX)
+                    + corner(cellX1, cellY2, fromBitX, toBitX, 0, toBitY);
+        }
+        if (cellY1 == cellY2) {
+            return corner(cellX1, cellY1, fromBitX, 7, fromBitY, toBitY)
+                    + row(cellY1, cellX1 + 1, cellX2 - 1, fromBitY, toBitY)
+                    + corner(cellX2, cellY1, 0, toBitX, fromBitY, toBitY);
+        }
+        return corner(cellX1, cellY1, fromBitX, 7, fromBitY, 7)
+                + corner(cellX2, cellY1, 0, toBitX, fromBitY, 7)
+                + corner(cellX1, cellY2, fromBitX, 7, 0, toBitY)
+                + corner(cellX2, cellY2, 0, toBitX, 0, toBitY)
+                + column(cellX1, cellY1 + 1, cellY2 - 1, fromBitX, 7)
+                + column(cellX2, cellY1 + 1, cellY2 - 1, 0, toBitX)
+                + row(cellY1, cellX1 + 1, cellX2 - 1, fromBitY, 7)
+                + row(cellY2, cellX1 + 1, cellX2 - 1, 0, toBitY)
+                + cells(cellX1 + 1, cellY1 + 1, cellX2 - 1, cellY2 - 1);
+    }
+
+    private int corner(int cellX, int cellY, int fromBitX, int toBitX, int fromBitY, int toBitY) {
+        return Long.bitCount(cells.get(cellX, cellY) & fromX[fromBitX] & toX[toBitX] & fromY[fromBitY] & toY[toBitY]);
+    }
+
+    //whole cells of the inclusive cell rectangle
+    private int cells(int cellX1, int cellY1, int cellX2, int cellY2) {
+        if (cellX1 > cellX2 || cellY1 > cellY2) {
+            return 0;
+        }
+        int stride = numCellsX + 1;
+        return cellCounts[(cellY2 + 1) * stride + cellX2 + 1] - cellCounts[cellY1 * stride + cellX2 + 1]
+                - cellCounts[(cellY2 + 1) * stride + cellX1] + cellCounts[cellY1 * stride + cellX1];
+    }
+
+    //coords between bits fromBit and toBit of each row, in cells [cellY1, cellY2] of a column
+    private int column(int cellX, int cellY1, int cellY2, int fromBit, int toBit) {
+        if (cellY1 > cellY2) {
+            return 0;
+        }
+        return columnFrom(cellX, cellY1, cellY2, fromBit) - (toBit < 7 ? columnFrom(cellX, cellY1, cellY2, toBit + 1) : 0);
+    }
+
+    private int columnFrom(int cellX, int cellY1, int cellY2, int fromBit) {
+        if (fromBit == 0) {
+            return cells(cellX, cellY1, cellX, cellY2);
+        }
+        int[] counts = columnCounts[fromBit - 1];
+        int column = cellX * (numCellsY + 1);
+        return counts[column + cellY2 + 1] - counts[column + cellY1];
+    }
+
+    private int row(int cellY, int cellX1, int cellX2, int fromBit, int toBit) {
+        if (cellX1 > cellX2) {
+            return 0;
+        }
+        return rowFrom(cellY, cellX1, cellX2, fromBit) - (toBit < 7 ? rowFrom(cellY, cellX1, cellX2, toBit + 1) : 0);
+    }
+
+    private int rowFrom(int cellY, int cellX1, int cellX2, int fromBit) {
+        if (fromBit == 0) {
+            return cells(cellX1, cellY, cellX2, cellY);
+        }
+        int[] counts = rowCounts[fromBit - 1];
+        int row = cellY * (numCellsX + 1);
+        return counts[row + cellX2 + 1] - counts[row + cellX1];
+    }
+
+}
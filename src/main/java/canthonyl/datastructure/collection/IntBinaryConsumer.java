@@ -0,0 +1,8 @@
+package canthonyl.datastructure.collection;
+
+@FunctionalInterface
+public interface IntBinaryConsumer {
+
+    void accept(int x, int y);
+
+}
@@ -9,5 +9,11 @@ public interface ProjectTarget<T, S> {
 
     void updateRange(Integer x1, Integer y1, Integer x2, Integer y2, T value);
 
-}
+    //updates the first n ranges given by the arrays, targets that can fill ranges in bulk should override this
+    default void updateRanges(int[] x1, int[] y1, int[] x2, int[] y2, int n, T value) {
+        for (int i = 0; i < n; i++) {
+            updateRange(x1[i], y1[i], x2[i], y2[i], value);
+        }
+    }
 
+}
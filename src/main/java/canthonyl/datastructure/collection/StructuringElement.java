@@ -0,0 +1,135 @@
+package canthonyl.datastructure.collection;
+
+import static canthonyl.datastructure.collection.CoordSet.fromX;
+import static canthonyl.datastructure.collection.CoordSet.toX;
+
+/**
+ * Offsets from the origin of a structuring element for {@link CoordSet} morphology, each within 8 coords of the origin
+ * so that a cell is computed from its eight neighbouring cells only.
+ */
+public final class StructuringElement {
+
+    private static final int MAX_OFFSET = 8;
+
+    private final int[] dx;
+    private final int[] dy;
+
+    //window placement of each offset, for reading coords at (x - dx, y - dy) when dilating and at (x + dx, y + dy) when eroding
+    private final Window[] dilateWindows;
+    private final Window[] erodeWindows;
+
+    private StructuringElement(int[] dx, int[] dy) {
+        if (dx.length == 0) {
+            throw new IllegalArgumentException("Structuring element must have at least one offset");
+        }
+        this.dx = dx;
+        this.dy = dy;
+        this.dilateWindows = new Window[dx.length];
+        this.erodeWindows = new Window[dx.length];
+        for (int i = 0; i < dx.length; i++) {
+            if (Math.abs(dx[i]) > MAX_OFFSET || Math.abs(dy[i]) > MAX_OFFSET) {
+                throw new IllegalArgumentException("Offset ("+dx[i]+","+dy[i]+") is more than "+MAX_OFFSET+" from the origin");
+            }
+            dilateWindows[i] = new Window(-dx[i], -dy[i]);
+            erodeWindows[i] = new Window(dx[i], dy[i]);
+        }
+    }
+
+    //offsets given as x, y pairs
+    public static StructuringElement of(int... offsets) {
+        if (offsets.length % 2 != 0) {
+            throw new IllegalArgumentException("Offsets must be given as x, y pairs");
+        }
+        int[] dx = new int[offsets.length / 2];
+        int[] dy = new int[offsets.length / 2];
+        for (int i = 0; i < dx.length; i++) {
+            dx[i] = offsets[2 * i];
+            dy[i] = offsets[2 * i + 1];
+        }
+        return new StructuringElement(dx, dy);
+    }
+
+    //(2 * radius + 1) square centred on the origin
+    public static StructuringElement square(Integer radius) {
+        int side = 2 * radius + 1;
+        int[] dx = new int[side * side];
+        int[] dy = new int[side * side];
+        for (int i = 0; i < dx.length; i++) {
+            dx[i] = i % side - radius;
+            dy[i] = i / side - radius;
+        }
+        return new StructuringElement(dx, dy);
+    }
+
+    //horizontal and vertical arms of the given length through the origin
+    public static StructuringElement cross(Integer radius) {
+        int[] dx = new int[4 * radius + 1];
+        int[] dy = new int[4 * radius + 1];
+        for (int i = 1; i <= radius; i++) {
+            dx[4 * i - 3] = -i;
+            dx[4 * i - 2] = i;
+            dy[4 * i - 1] = -i;
+            dy[4 * i] = i;
+        }
+        return new StructuringElement(dx, dy);
+    }
+
+    public Integer size() { return dx.length; }
+
+    /**
+     * Dilated value of the cell at cellX of rows[1], given the rows of cells above, at and below it.
+     */
+    long dilate(long[][] rows, int cellX) {
+        long result = 0L;
+        for (Window window : dilateWindows) {
+            result |= window.read(rows, cellX);
+        }
+        return result;
+    }
+
+    long erode(long[][] rows, int cellX) {
+        long result = -1L;
+        for (int i = 0; i < erodeWindows.length && result != 0L; i++) {
+            result &= erodeWindows[i].read(rows, cellX);
+        }
+        return result;
+    }
+
+    //8x8 coords whose first coord is (ox, oy) away from the first coord of a cell
+    private static final class Window {
+        private final int cellDx;
+        private final int cellDy;
+        private final int shiftX;
+        private final int shiftY;
+        private final long lowMask;
+        private final long highMask;
+
+        Window(int ox, int oy) {
+            cellDx = Math.floorDiv(ox, 8);
+            cellDy = Math.floorDiv(oy, 8);
+            shiftX = Math.floorMod(ox, 8);
+            shiftY = Math.floorMod(oy, 8);
+            lowMask = toX[7 - shiftX];
+            highMask = shiftX == 0 ? 0L : fromX[8 - shiftX];
+        }
+
+        long read(long[][] rows, int cellX) {
+            long top = combine(rows[cellDy + 1], cellX + cellDx);
+            if (shiftY == 0) {
+                return top;
+            }
+            long bottom = combine(rows[cellDy + 2], cellX + cellDx);
+            return top >>> 8 * shiftY | bottom << 8 * (8 - shiftY);
+        }
+
+        private long combine(long[] cells, int cellX) {
+            long left = cellX >= 0 && cellX < cells.length ? cells[cellX] : 0L;
+            if (shiftX == 0) {
+                return left;
+            }
+            long right = cellX + 1 >= 0 && cellX + 1 < cells.length ? cells[cellX + 1] : 0L;
+            return (left >>> shiftX) & lowMask | (right << 8 - shiftX) & highMask;
+        }
+    }
+
+}
@@ -0,0 +1,82 @@
+package canthonyl.datastructure.collection.store;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Binary layout shared by coord set files and serialized coord sets: a 32 byte header holding magic, version,
+ * width, height and coordinate count (-1 if unknown), followed by the cells in row major order, each stored little endian in 8 bytes.
+ */
+public final class CellFormat {
+
+    public static final int MAGIC = 0x43534554; //"CSET"
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 32;
+    public static final long UNKNOWN_COUNT = -1L;
+
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int WIDTH_OFFSET = 8;
+    private static final int HEIGHT_OFFSET = 12;
+    private static final int COUNT_OFFSET = 16;
+
+    private CellFormat() {}
+
+    public static int numCells(int length) {
+        return (length + 7) / 8;
+    }
+
+    public static long size(int width, int height) {
+        return HEADER_SIZE + (long) numCells(width) * numCells(height) * Long.BYTES;
+    }
+
+    /**
+     * Writes the header at the given index of a little endian buffer.
+     */
+    public static void writeHeader(ByteBuffer buffer, int index, int width, int height, long coordCount) {
+        buffer.putInt(index + MAGIC_OFFSET, MAGIC);
+        buffer.putInt(index + VERSION_OFFSET, VERSION);
+        buffer.putInt(index + WIDTH_OFFSET, width);
+        buffer.putInt(index + HEIGHT_OFFSET, height);
+        buffer.putLong(index + COUNT_OFFSET, coordCount);
+        buffer.putLong(index + COUNT_OFFSET + Long.BYTES, 0L);
+    }
+
+    /**
+     * Validates the header at the given index of a little endian buffer.
+     *
+     * @throws IllegalArgumentException if the header is not a coord set header of a supported version
+     */
+    public static void checkHeader(ByteBuffer buffer, int index) {
+        if (buffer.limit() - index < HEADER_SIZE || buffer.getInt(index + MAGIC_OFFSET) != MAGIC) {
+            throw new IllegalArgumentException("Not a coord set");
+        }
+        if (buffer.getInt(index + VERSION_OFFSET) != VERSION) {
+            throw new IllegalArgumentException("Unsupported coord set version "+buffer.getInt(index + VERSION_OFFSET));
+        }
+    }
+
+    public static int width(ByteBuffer buffer, int index) {
+        return buffer.getInt(index + WIDTH_OFFSET);
+    }
+
+    public static int height(ByteBuffer buffer, int index) {
+        return buffer.getInt(index + HEIGHT_OFFSET);
+    }
+
+    public static long coordCount(ByteBuffer buffer, int index) {
+        return buffer.getLong(index + COUNT_OFFSET);
+    }
+
+    public static void setCoordCount(ByteBuffer buffer, int index, long coordCount) {
+        buffer.putLong(index + COUNT_OFFSET, coordCount);
+    }
+
+    /**
+     * A little endian view of the buffer's remaining bytes, leaving the buffer's own byte order unchanged.
+     */
+    public static ByteBuffer littleEndian(ByteBuffer buffer) {
+        return buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+}
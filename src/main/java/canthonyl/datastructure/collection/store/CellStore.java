@@ -0,0 +1,113 @@
+package canthonyl.datastructure.collection.store;
+
+import java.nio.LongBuffer;
+
+/**
+ * Backing storage for the 8x8 cells of a {@link canthonyl.datastructure.collection.CoordSet}.
+ * Each cell is a 64-bit word where bit (y * 8 + x) represents the coordinate at offset (x, y) within the cell.
+ */
+public interface CellStore {
+
+    int getNumCellsX();
+
+    int getNumCellsY();
+
+    long get(int cellX, int cellY);
+
+    void set(int cellX, int cellY, long value);
+
+    /**
+     * True if cells are addressed directly, so that disjoint rows of cells can be read and written from different threads.
+     */
+    default boolean isDense() {
+        return true;
+    }
+
+    /**
+     * Creates an empty store of the same kind for a grid of the given number of cells,
+     * defaults to a heap store for stores bound to external memory or files.
+     */
+    default CellStore create(int numCellsX, int numCellsY) {
+        return new HeapCellStore(numCellsX, numCellsY);
+    }
+
+    /**
+     * Visits every non-empty cell within the inclusive cell bound, in row major order, until the visitor returns false.
+     * The visitor may update the visited cell but must not add cells to this store while visiting.
+     *
+     * @return false if visiting stopped early
+     */
+    default boolean forEachNonEmpty(int cellX1, int cellY1, int cellX2, int cellY2, CellVisitor visitor) {
+        for (int cellY = cellY1; cellY <= cellY2; cellY++) {
+            for (int cellX = cellX1; cellX <= cellX2; cellX++) {
+                long value = get(cellX, cellY);
+                if (value != 0L && !visitor.visit(cellX, cellY, value)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Row major index of the first non-empty cell in the index range [fromIndex, toIndex), or toIndex if there is none.
+     */
+    default int nextNonEmpty(int fromIndex, int toIndex) {
+        int numCellsX = getNumCellsX();
+        int[] found = {toIndex};
+        for (int index = fromIndex; index < toIndex; index = (index / numCellsX + 1) * numCellsX) {
+            int cellY = index / numCellsX;
+            int cellX1 = index % numCellsX;
+            int cellX2 = (int) Math.min(numCellsX - 1, cellX1 + (long) toIndex - 1 - index);
+            if (!forEachNonEmpty(cellX1, cellY, cellX2, cellY, (cellX, y, value) -> {
+                found[0] = y * numCellsX + cellX;
+                return false;
+            })) {
+                return found[0];
+            }
+        }
+        return toIndex;
+    }
+
+    /**
+     * True if every cell in the given row of cells is empty.
+     */
+    default boolean isRowEmpty(int cellY) {
+        return forEachNonEmpty(0, cellY, getNumCellsX() - 1, cellY, (cellX, y, value) -> false);
+    }
+
+    default boolean forEachNonEmpty(CellVisitor visitor) {
+        return forEachNonEmpty(0, 0, getNumCellsX() - 1, getNumCellsY() - 1, visitor);
+    }
+
+    /**
+     * Copies cells, in row major order starting at the given cell index, into the remaining space of target.
+     */
+    default void getCells(int fromIndex, LongBuffer target) {
+        int numCellsX = getNumCellsX();
+        for (int i = fromIndex; target.hasRemaining(); i++) {
+            target.put(get(i % numCellsX, i / numCellsX));
+        }
+    }
+
+    /**
+     * Copies the remaining cells of source into this store, in row major order starting at the given cell index.
+     */
+    default void setCells(int fromIndex, LongBuffer source) {
+        int numCellsX = getNumCellsX();
+        for (int i = fromIndex; source.hasRemaining(); i++) {
+            set(i % numCellsX, i / numCellsX, source.get());
+        }
+    }
+
+    /**
+     * Writes cells and the given coordinate count through to the underlying storage, if the store is persistent.
+     */
+    default void force(int coordCount) {}
+
+    @FunctionalInterface
+    interface CellVisitor {
+        boolean visit(int cellX, int cellY, long value);
+    }
+
+}
@@ -0,0 +1,158 @@
+package canthonyl.datastructure.collection.store;
+
+import java.nio.LongBuffer;
+
+/**
+ * Keeps all cells in a single flat long[] in row major order, without any per cell object.
+ * <p>
+ * Each row of cells also keeps a two level occupancy bitmap, maintained on write: one bit per non-empty cell,
+ * and one summary bit per 64 cells that is set while any of them is non-empty. Scans use it to jump straight to
+ * non-empty cells, so that visiting a sparse set costs in proportion to its occupied cells rather than its area.
+ * The bitmap words of a row are never shared with another row, so disjoint rows can still be written from different threads.
+ */
+public class HeapCellStore implements CellStore {
+
+    private final int numCellsX;
+    private final int numCellsY;
+    private final long[] cells;
+
+    private final int occupancyWords;
+    private final int summaryWords;
+    private final long[] occupancy;
+    private final long[] summary;
+
+    public HeapCellStore(int numCellsX, int numCellsY) {
+        this.numCellsX = numCellsX;
+        this.numCellsY = numCellsY;
+        this.cells = new long[Math.multiplyExact(numCellsX, numCellsY)];
+        this.occupancyWords = (numCellsX + 63) >>> 6;
+        this.summaryWords = (occupancyWords + 63) >>> 6;
+        this.occupancy = new long[Math.multiplyExact(occupancyWords, numCellsY)];
+        this.summary = new long[Math.multiplyExact(summaryWords, numCellsY)];
+    }
+
+    @Override
+    public int getNumCellsX() { return numCellsX; }
+
+    @Override
+    public int getNumCellsY() { return numCellsY; }
+
+    @Override
+    public long get(int cellX, int cellY) {
+        return cells[cellY * numCellsX + cellX];
+    }
+
+    @Override
+    public void set(int cellX, int cellY, long value) {
+        int index = cellY * numCellsX + cellX;
+        long previous = cells[index];
+        cells[index] = value;
+        if ((previous == 0L) != (value == 0L)) {
+            updateOccupancy(cellX, cellY, value != 0L);
+        }
+    }
+
+    private void updateOccupancy(int cellX, int cellY, boolean occupied) {
+        int word = cellY * occupancyWords + (cellX >>> 6);
+        int summaryWord = cellY * summaryWords + ((cellX >>> 6) >>> 6);
+        long summaryBit = 1L << (cellX >>> 6);
+        if (occupied) {
+            occupancy[word] |= 1L << cellX;
+            summary[summaryWord] |= summaryBit;
+        } else if ((occupancy[word] &= ~(1L << cellX)) == 0L) {
+            summary[summaryWord] &= ~summaryBit;
+        }
+    }
+
+    @Override
+    public boolean isRowEmpty(int cellY) {
+        for (int i = cellY * summaryWords, end = i + summaryWords; i < end; i++) {
+            if (summary[i] != 0L) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //walks the summary bits, then the occupancy bits under each, so empty runs of 64 cells cost a single test;
+    //each word is read before its cells are visited, so clearing the visited cell does not disturb the walk
+    @Override
+    public boolean forEachNonEmpty(int cellX1, int cellY1, int cellX2, int cellY2, CellVisitor visitor) {
+        if (cellX1 > cellX2) {
+            return true;
+        }
+        int firstWord = cellX1 >>> 6;
+        int lastWord = cellX2 >>> 6;
+        for (int cellY = cellY1; cellY <= cellY2; cellY++) {
+            int summaryBase = cellY * summaryWords;
+            int occupancyBase = cellY * occupancyWords;
+            for (int s = firstWord >>> 6; s <= lastWord >>> 6; s++) {
+                long summaryBits = summary[summaryBase + s] & wordMask(s, firstWord, lastWord);
+                while (summaryBits != 0L) {
+                    int word = (s << 6) + Long.numberOfTrailingZeros(summaryBits);
+                    summaryBits &= summaryBits - 1;
+                    long bits = occupancy[occupancyBase + word] & wordMask(word, cellX1, cellX2);
+                    while (bits != 0L) {
+                        int cellX = (word << 6) + Long.numberOfTrailingZeros(bits);
+                        bits &= bits - 1;
+                        if (!visitor.visit(cellX, cellY, cells[cellY * numCellsX + cellX])) {
+                            return false;
+                        }
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    //bits of the given word that fall within the inclusive bit range [from, to]
+    private static long wordMask(int word, int from, int to) {
+        long mask = -1L;
+        if (word == from >>> 6) {
+            mask &= -1L << from;
+        }
+        if (word == to >>> 6) {
+            mask &= -1L >>> (63 - (to & 63));
+        }
+        return mask;
+    }
+
+    @Override
+    public void getCells(int fromIndex, LongBuffer target) {
+        target.put(cells, fromIndex, target.remaining());
+    }
+
+    @Override
+    public void setCells(int fromIndex, LongBuffer source) {
+        int count = source.remaining();
+        source.get(cells, fromIndex, count);
+        if (count > 0) {
+            rebuildOccupancy(fromIndex / numCellsX, (fromIndex + count - 1) / numCellsX);
+        }
+    }
+
+    private void rebuildOccupancy(int cellY1, int cellY2) {
+        for (int cellY = cellY1; cellY <= cellY2; cellY++) {
+            int occupancyBase = cellY * occupancyWords;
+            int summaryBase = cellY * summaryWords;
+            for (int i = 0; i < summaryWords; i++) {
+                summary[summaryBase + i] = 0L;
+            }
+            for (int word = 0; word < occupancyWords; word++) {
+                long bits = 0L;
+                int cellBase = cellY * numCellsX + (word << 6);
+                int end = Math.min(64, numCellsX - (word << 6));
+                for (int i = 0; i < end; i++) {
+                    if (cells[cellBase + i] != 0L) {
+                        bits |= 1L << i;
+                    }
+                }
+                occupancy[occupancyBase + word] = bits;
+                if (bits != 0L) {
+                    summary[summaryBase + (word >>> 6)] |= 1L << word;
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,112 @@
+package canthonyl.datastructure.collection.store;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static canthonyl.datastructure.collection.store.CellFormat.HEADER_SIZE;
+import static canthonyl.datastructure.collection.store.CellFormat.numCells;
+
+/**
+ * Keeps all cells in a file mapped into memory, leaving reads and writes to the OS page cache.
+ * The file is laid out in {@link CellFormat}, so it holds the same bytes as a serialized coord set.
+ * Writes reach the file through the shared mapping as they happen, and the disk once the OS writes the pages back or
+ * {@link #force(int)} is called. The first write after a force marks the header coordinate count unknown until the next
+ * force, so a file left without a force reopens with its cells recounted rather than a stale count.
+ */
+public class MappedCellStore implements CellStore {
+
+    private final MappedByteBuffer buffer;
+    private final int width;
+    private final int height;
+    private final int numCellsX;
+    private final int numCellsY;
+    private boolean countUnknown;
+
+    private MappedCellStore(MappedByteBuffer buffer) {
+        this.buffer = buffer;
+        this.width = CellFormat.width(buffer, 0);
+        this.height = CellFormat.height(buffer, 0);
+        this.numCellsX = numCells(width);
+        this.numCellsY = numCells(height);
+        this.countUnknown = CellFormat.coordCount(buffer, 0) == CellFormat.UNKNOWN_COUNT;
+    }
+
+    /**
+     * Creates (or truncates) the file and maps an empty grid for the given dimension.
+     */
+    public static MappedCellStore create(Path file, int width, int height) {
+        long size = CellFormat.size(width, height);
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Dimension "+width+"x"+height+" exceeds maximum mapped size");
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            CellFormat.writeHeader(buffer, 0, width, height, 0L);
+            return new MappedCellStore(buffer);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Maps an existing file previously created by {@link #create(Path, int, int)}, without reading any cells.
+     *
+     * @throws IllegalArgumentException if the file is not a coord set, or shorter than its dimension requires
+     */
+    public static MappedCellStore open(Path file) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            CellFormat.checkHeader(buffer, 0);
+            long size = CellFormat.size(CellFormat.width(buffer, 0), CellFormat.height(buffer, 0));
+            if (channel.size() < size) {
+                throw new IllegalArgumentException("Truncated coord set of "+channel.size()+" bytes, expected "+size);
+            }
+            return new MappedCellStore(buffer);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public int getWidth() { return width; }
+    public int getHeight() { return height; }
+    //coordinate count as of the last force, null if cells changed since without a force
+    public Integer getCoordCount() {
+        return countUnknown ? null : (int) CellFormat.coordCount(buffer, 0);
+    }
+
+    @Override
+    public int getNumCellsX() { return numCellsX; }
+
+    @Override
+    public int getNumCellsY() { return numCellsY; }
+
+    @Override
+    public long get(int cellX, int cellY) {
+        return buffer.getLong(HEADER_SIZE + (cellY * numCellsX + cellX) * Long.BYTES);
+    }
+
+    @Override
+    public void set(int cellX, int cellY, long value) {
+        if (!countUnknown) {
+            CellFormat.setCoordCount(buffer, 0, CellFormat.UNKNOWN_COUNT);
+            countUnknown = true;
+        }
+        buffer.putLong(HEADER_SIZE + (cellY * numCellsX + cellX) * Long.BYTES, value);
+    }
+
+    @Override
+    public void force(int coordCount) {
+        CellFormat.setCoordCount(buffer, 0, coordCount);
+        countUnknown = false;
+        buffer.force();
+    }
+
+}
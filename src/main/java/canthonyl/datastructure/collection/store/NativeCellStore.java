@@ -0,0 +1,72 @@
+package canthonyl.datastructure.collection.store;
+
+import com.sun.jna.Memory;
+import com.sun.jna.Pointer;
+
+import java.nio.ByteOrder;
+
+/**
+ * Keeps all cells in one contiguous block of native memory, read and written in place through a single {@link Pointer}.
+ * Cells are laid out in row major order, each cell stored little endian in cellSize bytes, so the block can be shared
+ * with native code without copying.
+ */
+public class NativeCellStore implements CellStore {
+
+    private static final boolean BIG_ENDIAN = ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN;
+
+    private final int numCellsX;
+    private final int numCellsY;
+    private final long cellSize;
+    private final Pointer address;
+
+    public NativeCellStore(int numCellsX, int numCellsY, int cellSize, Pointer address) {
+        this.numCellsX = numCellsX;
+        this.numCellsY = numCellsY;
+        this.cellSize = cellSize;
+        if (address != null) {
+            this.address = address;
+        } else {
+            Memory memory = new Memory((long) numCellsX * numCellsY * cellSize);
+            memory.clear();
+            this.address = memory;
+        }
+    }
+
+    public Pointer getPointer() {
+        return address;
+    }
+
+    @Override
+    public int getNumCellsX() { return numCellsX; }
+
+    @Override
+    public int getNumCellsY() { return numCellsY; }
+
+    @Override
+    public long get(int cellX, int cellY) {
+        long offset = ((long) cellY * numCellsX + cellX) * cellSize;
+        if (cellSize == Long.BYTES) {
+            long value = address.getLong(offset);
+            return BIG_ENDIAN ? Long.reverseBytes(value) : value;
+        }
+        //cells shorter than a long are read byte by byte, so the access stays within the cell
+        long value = 0L;
+        for (int i=0; i<cellSize; i++) {
+            value |= (address.getByte(offset + i) & 0xFFL) << (i * 8);
+        }
+        return value;
+    }
+
+    @Override
+    public void set(int cellX, int cellY, long value) {
+        long offset = ((long) cellY * numCellsX + cellX) * cellSize;
+        if (cellSize == Long.BYTES) {
+            address.setLong(offset, BIG_ENDIAN ? Long.reverseBytes(value) : value);
+            return;
+        }
+        for (int i=0; i<cellSize; i++) {
+            address.setByte(offset + i, (byte) (value >>> (i * 8)));
+        }
+    }
+
+}
@@ -0,0 +1,182 @@
+package canthonyl.datastructure.collection.store;
+
+import java.util.Arrays;
+
+/**
+ * Materializes only non-empty cells, in an open addressing (linear probing) map from row major cell index to cell value.
+ * Memory use and whole-set visits scale with the number of occupied cells rather than the area of the grid.
+ * Cells cleared to zero keep their slot until the next resize, so visitors can clear cells safely while visiting.
+ * Visits walk a sorted copy of the cell indexes, rebuilt only after cells are added, so they follow row major order and
+ * start at the first cell in range by binary search.
+ */
+public class SparseCellStore implements CellStore {
+
+    private static final long FREE = -1L;
+    private static final int MIN_CAPACITY = 16;
+
+    private final int numCellsX;
+    private final int numCellsY;
+
+    private long[] keys;
+    private long[] values;
+    private int mask;
+    private int used;
+    //sorted copy of the cell indexes, replaced rather than refilled so that concurrent readers never see a partial sort
+    private volatile long[] sortedKeys;
+    private volatile boolean sortedStale;
+
+    public SparseCellStore(int numCellsX, int numCellsY) {
+        this.numCellsX = numCellsX;
+        this.numCellsY = numCellsY;
+        allocate(MIN_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new long[capacity];
+        Arrays.fill(keys, FREE);
+        mask = capacity - 1;
+        used = 0;
+        sortedStale = true;
+    }
+
+    private int slot(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        int slot = (int)(h ^ (h >>> 32)) & mask;
+        while (keys[slot] != FREE && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    @Override
+    public int getNumCellsX() { return numCellsX; }
+
+    @Override
+    public int getNumCellsY() { return numCellsY; }
+
+    @Override
+    public long get(int cellX, int cellY) {
+        return values[slot((long) cellY * numCellsX + cellX)];
+    }
+
+    @Override
+    public void set(int cellX, int cellY, long value) {
+        long key = (long) cellY * numCellsX + cellX;
+        int slot = slot(key);
+        if (keys[slot] == key) {
+            values[slot] = value;
+        } else if (value != 0L) {
+            keys[slot] = key;
+            values[slot] = value;
+            sortedStale = true;
+            if (++used > (mask + 1) / 2) {
+                resize();
+            }
+        }
+    }
+
+    //rehash occupied cells only, dropping slots of cells cleared since the last resize
+    private void resize() {
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        int occupied = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != FREE && oldValues[i] != 0L) occupied++;
+        }
+        allocate(Math.max(MIN_CAPACITY, Integer.highestOneBit(Math.max(1, occupied)) << 2));
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != FREE && oldValues[i] != 0L) {
+                int slot = slot(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+                used++;
+            }
+        }
+    }
+
+    /**
+     * Number of materialized cells, including cells cleared since the last resize.
+     */
+    public int size() {
+        return used;
+    }
+
+    @Override
+    public boolean isDense() {
+        return false;
+    }
+
+    @Override
+    public CellStore create(int numCellsX, int numCellsY) {
+        return new SparseCellStore(numCellsX, numCellsY);
+    }
+
+    @Override
+    public boolean forEachNonEmpty(int cellX1, int cellY1, int cellX2, int cellY2, CellVisitor visitor) {
+        long area = (long)(cellX2 - cellX1 + 1) * (cellY2 - cellY1 + 1);
+        if (area <= used) {
+            return CellStore.super.forEachNonEmpty(cellX1, cellY1, cellX2, cellY2, visitor);
+        }
+        long[] sorted = sortedKeys();
+        long last = (long) cellY2 * numCellsX + cellX2;
+        for (int i = lowerBound(sorted, (long) cellY1 * numCellsX + cellX1); i < sorted.length && sorted[i] <= last; i++) {
+            long key = sorted[i];
+            int cellX = (int)(key % numCellsX);
+            if (cellX < cellX1 || cellX > cellX2) {
+                continue;
+            }
+            long value = values[slot(key)];
+            if (value != 0L && !visitor.visit(cellX, (int)(key / numCellsX), value)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int nextNonEmpty(int fromIndex, int toIndex) {
+        long[] sorted = sortedKeys();
+        for (int i = lowerBound(sorted, fromIndex); i < sorted.length && sorted[i] < toIndex; i++) {
+            if (values[slot(sorted[i])] != 0L) {
+                return (int) sorted[i];
+            }
+        }
+        return toIndex;
+    }
+
+    //sorts the indexes of materialized cells, including cleared ones since they can be set again without a new slot;
+    //readers racing on a stale copy each sort their own array, and the flag is only cleared once a sorted copy is published
+    private long[] sortedKeys() {
+        if (!sortedStale) {
+            return sortedKeys;
+        }
+        long[] sorted = new long[used];
+        int count = 0;
+        for (long key : keys) {
+            if (key != FREE) {
+                sorted[count++] = key;
+            }
+        }
+        Arrays.sort(sorted);
+        sortedKeys = sorted;
+        sortedStale = false;
+        return sorted;
+    }
+
+    //position of the first sorted index at or after key
+    private static int lowerBound(long[] sorted, long key) {
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sorted[mid] < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+}
@@ -0,0 +1,126 @@
+package canthonyl.datastructure.concurrency;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hashed timing wheel running tasks after a delay on a single daemon thread, in O(1) per scheduled task.
+ * A task lands in the bucket of its deadline tick modulo the wheel size, with the number of full turns of the wheel
+ * still to go, and runs once the thread has passed its deadline, never before. The thread starts on the first task,
+ * and parks without ticking while no task is scheduled.
+ */
+final class TimingWheel {
+
+    private final long tickNanos;
+    private final int mask;
+    private final ArrayDeque<Timeout>[] buckets;
+    //tasks scheduled since the last tick, moved into buckets by the wheel thread only
+    private final ConcurrentLinkedQueue<Timeout> pending;
+    private final AtomicInteger scheduled;
+    private final AtomicBoolean started;
+    private final long startNanos;
+    private volatile Thread thread;
+
+    @SuppressWarnings("unchecked")
+    TimingWheel(long tickNanos, int wheelSize) {
+        if (tickNanos <= 0L || Integer.bitCount(wheelSize) != 1) {
+            throw new IllegalArgumentException("Tick must be positive and wheel size a power of 2, was "+tickNanos+"ns x "+wheelSize);
+        }
+        this.tickNanos = tickNanos;
+        this.mask = wheelSize - 1;
+        this.buckets = new ArrayDeque[wheelSize];
+        for (int i=0; i<wheelSize; i++) {
+            buckets[i] = new ArrayDeque<>();
+        }
+        this.pending = new ConcurrentLinkedQueue<>();
+        this.scheduled = new AtomicInteger();
+        this.started = new AtomicBoolean();
+        this.startNanos = System.nanoTime();
+    }
+
+    void schedule(Runnable task, long delay, TimeUnit unit) {
+        long deadline = System.nanoTime() - startNanos + Math.max(unit.toNanos(delay), 0L);
+        pending.add(new Timeout(deadline, task));
+        boolean idle = scheduled.getAndIncrement() == 0;
+        if (started.compareAndSet(false, true)) {
+            start();
+        } else if (idle) {
+            //a wheel thread still starting sees the count before it first parks, so a missed unpark is harmless
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private void start() {
+        Thread wheelThread = new Thread(this::run, "timing-wheel");
+        wheelThread.setDaemon(true);
+        thread = wheelThread;
+        wheelThread.start();
+    }
+
+    private void run() {
+        long tick = elapsedTicks();
+        while (true) {
+            if (scheduled.get() == 0) {
+                LockSupport.park(this);
+                //buckets are empty, so the wheel can skip straight to the current tick
+                tick = Math.max(tick, elapsedTicks());
+                continue;
+            }
+            long sleepNanos;
+            while ((sleepNanos = (tick + 1) * tickNanos - (System.nanoTime() - startNanos)) > 0L) {
+                LockSupport.parkNanos(this, sleepNanos);
+            }
+            transferPending(tick);
+            expire(buckets[(int) (tick & mask)]);
+            tick++;
+        }
+    }
+
+    private long elapsedTicks() {
+        return (System.nanoTime() - startNanos) / tickNanos;
+    }
+
+    private void transferPending(long tick) {
+        Timeout timeout;
+        while ((timeout = pending.poll()) != null) {
+            long deadlineTick = Math.max(timeout.deadline / tickNanos, tick);
+            timeout.remainingRounds = (deadlineTick - tick) / buckets.length;
+            buckets[(int) (deadlineTick & mask)].add(timeout);
+        }
+    }
+
+    private void expire(ArrayDeque<Timeout> bucket) {
+        for (int i = bucket.size(); i > 0; i--) {
+            Timeout timeout = bucket.poll();
+            if (timeout.remainingRounds > 0L) {
+                timeout.remainingRounds--;
+                bucket.add(timeout);
+                continue;
+            }
+            scheduled.decrementAndGet();
+            try {
+                timeout.task.run();
+            } catch (RuntimeException e) {
+                //a failing task must not stop the wheel for every other task
+                Thread current = Thread.currentThread();
+                current.getUncaughtExceptionHandler().uncaughtException(current, e);
+            }
+        }
+    }
+
+    private static final class Timeout {
+        private final long deadline;
+        private final Runnable task;
+        private long remainingRounds;
+
+        private Timeout(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+    }
+
+}
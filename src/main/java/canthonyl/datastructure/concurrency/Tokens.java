@@ -1,233 +1,682 @@
 package canthonyl.datastructure.concurrency;
 
-import canthonyl.datastructure.concurrency.lock.AtomicBooleanLock;
-import canthonyl.datastructure.concurrency.lock.OptimisticLock;
-
 import java.time.Clock;
 import java.time.Duration;
 import java.util.Arrays;
 import java.util.Objects;
-import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.stream.LongStream;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
 
 public class Tokens {
 
+    public enum Mode {
+        //exact sliding window, keeps the timestamp of every token taken within the window
+        SLIDING_WINDOW,
+        //generic cell rate algorithm, keeps a single theoretical arrival time per level in constant memory, so that
+        //tokens free up evenly over the window rather than a window after each was taken
+        GCRA
+    }
+
+    //outcomes of claiming the next slot of a level
+    private static final int CLAIMED = 0;
+    private static final int UNAVAILABLE = 1;
+    private static final int CONFLICT = 2;
+
+    //level state, a claim sequence in the top 31 bits, reserve taken in the next 31 bits, then a flag for a claim
+    //in progress and a flag for the claim resetting the reserve taken
+    private static final int SEQUENCE_SHIFT = 33;
+    private static final int RESERVE_SHIFT = 2;
+    private static final long CLAIMING = 2L;
+    private static final long RESET = 1L;
+
+    //shortest park after a token expected to be available was taken by another caller, so that waiters never spin
+    private static final long MIN_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    //one wheel for all instances, ticking every millisecond to match the resolution of token timestamps
+    private static final TimingWheel TIMER = new TimingWheel(TimeUnit.MILLISECONDS.toNanos(1), 1024);
+
     private final Clock clock;
-    private final Long totalNumTokens;
-    private final OptimisticLock lock;
-    private final TokenLevel[] levels;
-    private final Long windowMilli;
-    private final Long unit;
+    private final long totalNumTokens;
+    private final Level[] levels;
+    //next available timestamp of each level, kept up to date by the levels so that queries across levels read one array
+    private final AtomicLongArray nextAvailable;
+    //threads waiting to acquire a token from each level or above, in arrival order
+    private final ConcurrentLinkedQueue<Thread>[] waiters;
+    //futures waiting to acquire a token from each level or above, in arrival order
+    private final ConcurrentLinkedQueue<AsyncWaiter>[] asyncWaiters;
+    //1 while a level's async waiters are being granted tokens or its head has a retry on the timer
+    private final AtomicIntegerArray asyncDraining;
+    private final long windowMilli;
+    private final long unit;
     private final TimeUnit timeUnit;
-    private final Long[] tokensAtLevel;
-    private Long clockOffsetMillis;
+    private final Mode mode;
+    private final long[] tokensAtLevel;
+    private long clockOffsetMillis;
 
-    public Tokens(Clock clock, Long totalNumTokens, Long unit, TimeUnit timeUnit) {
-        this.clock = clock;
-        this.windowMilli = timeUnit.convert(unit, TimeUnit.MILLISECONDS);
-        this.lock = new AtomicBooleanLock();
-        this.totalNumTokens = totalNumTokens;
-        this.tokensAtLevel = new Long[]{totalNumTokens};
-        this.levels = init(tokensAtLevel);
-        this.unit = unit;
-        this.timeUnit = timeUnit;
-        this.clockOffsetMillis = 0L;
+    public Tokens(Clock clock, long totalNumTokens, long unit, TimeUnit timeUnit) {
+        this(clock, totalNumTokens, unit, timeUnit, Mode.SLIDING_WINDOW);
     }
 
-    public Tokens(Clock clock, Long unit, TimeUnit timeUnit, Long... tokensAtLevel) {
+    public Tokens(Clock clock, long totalNumTokens, long unit, TimeUnit timeUnit, Mode mode) {
+        this(clock, unit, timeUnit, mode, new long[]{totalNumTokens});
+    }
+
+    public Tokens(Clock clock, long unit, TimeUnit timeUnit, long[] tokensAtLevel) {
+        this(clock, unit, timeUnit, Mode.SLIDING_WINDOW, tokensAtLevel);
+    }
+
+    public Tokens(Clock clock, long unit, TimeUnit timeUnit, Mode mode, long[] tokensAtLevel) {
         this.clock = clock;
         this.windowMilli = timeUnit.convert(unit, TimeUnit.MILLISECONDS);
-        this.lock = new AtomicBooleanLock();
-        this.totalNumTokens = Arrays.stream(tokensAtLevel).reduce((a,b) -> a+b).get();
+        this.totalNumTokens = Arrays.stream(tokensAtLevel).sum();
         this.tokensAtLevel = tokensAtLevel;
+        this.mode = mode;
+        this.nextAvailable = new AtomicLongArray(tokensAtLevel.length);
+        this.waiters = initWaiters(tokensAtLevel.length);
+        this.asyncWaiters = initWaiters(tokensAtLevel.length);
+        this.asyncDraining = new AtomicIntegerArray(tokensAtLevel.length);
         this.levels = init(tokensAtLevel);
         this.unit = unit;
         this.timeUnit = timeUnit;
         this.clockOffsetMillis = 0L;
     }
 
-    public Long getTotalNumTokens() {
+    public Tokens(Clock clock, Long totalNumTokens, Long unit, TimeUnit timeUnit) {
+        this(clock, totalNumTokens.longValue(), unit.longValue(), timeUnit);
+    }
+
+    public Tokens(Clock clock, Long unit, TimeUnit timeUnit, Long... tokensAtLevel) {
+        this(clock, unit.longValue(), timeUnit, Arrays.stream(tokensAtLevel).mapToLong(Long::longValue).toArray());
+    }
+
+    public long getTotalNumTokens() {
         return totalNumTokens;
     }
 
-    public Long getWindowMilli() {
+    public long getWindowMilli() {
         return windowMilli;
     }
 
+    public Mode getMode() {
+        return mode;
+    }
+
     public Tokens withOffset(Long millis) {
-        Tokens tokens = new Tokens(Clock.offset(clock, Duration.ofMillis(millis)), unit, timeUnit, tokensAtLevel);
+        Tokens tokens = new Tokens(Clock.offset(clock, Duration.ofMillis(millis)), unit, timeUnit, mode, tokensAtLevel);
         tokens.clockOffsetMillis = millis;
         return tokens;
     }
 
-    private TokenLevel[] init(Long[] tokensAtLevel) {
-        Long now = clock.millis();
-        TokenLevel[] arr = new TokenLevel[tokensAtLevel.length];
+    private Level[] init(long[] tokensAtLevel) {
+        long now = clock.millis();
+        Level[] arr = new Level[tokensAtLevel.length];
         for (int i=0; i<arr.length; i++) {
-            arr[i] = new TokenLevel(tokensAtLevel[i], now);
+            int levelNumTokens = Math.toIntExact(tokensAtLevel[i]);
+            arr[i] = mode == Mode.GCRA ? new GcraLevel(i, levelNumTokens, now) : new TokenLevel(i, levelNumTokens, now);
+            nextAvailable.set(i, arr[i].nextAvailableTimestamp(arr[i].state.get()));
+        }
+        return arr;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> ConcurrentLinkedQueue<T>[] initWaiters(int numLevels) {
+        ConcurrentLinkedQueue<T>[] arr = new ConcurrentLinkedQueue[numLevels];
+        for (int i=0; i<numLevels; i++) {
+            arr[i] = new ConcurrentLinkedQueue<>();
         }
         return arr;
     }
 
+    public long nextAvailableTimestamp(int levelIndex){
+        long timestamp = Long.MAX_VALUE;
+        for (int i = levelIndex; i < levels.length; i++) {
+            timestamp = Math.min(timestamp, nextAvailable.get(i));
+        }
+        return timestamp;
+    }
+
     public Long nextAvailableTimestamp(Long levelIndex){
-        lock.acquire();
-        try {
-            Long timestamp = Long.MAX_VALUE;
-            for (Long i = levelIndex; i < levels.length; i++) {
-                timestamp = Math.min(timestamp, levels[i.intValue()].peek());
+        return nextAvailableTimestamp(levelIndex.intValue());
+    }
+
+    public long nextAvailableTimestamp(){
+        return nextAvailableTimestamp(0);
+    }
+
+    //lock free, a token is claimed and a reserve is taken by a CAS on the state of a level, and a lost race rescans the levels
+    //with the same clock reading, so a single level returns the same timestamps as some serial order of the calls
+    public long reserve(int levelIndex) {
+        long now = clock.millis();
+        while (true) {
+            Level reserveLevel = null;
+            long reserveState = 0L;
+            long reserveTimestamp = Long.MAX_VALUE;
+            boolean conflict = false;
+
+            for (int i=levelIndex; i<levels.length; i++) {
+                Level level = levels[i];
+                long state = level.state.get();
+                int claim = level.claim(state, now, true);
+                if (claim == CLAIMED) {
+                    return 0L;
+                }
+                if (claim == CONFLICT) {
+                    conflict = true;
+                    break;
+                }
+                long timestamp = level.peekReserve(state);
+                if (reserveLevel == null || timestamp < reserveTimestamp) {
+                    reserveLevel = level;
+                    reserveState = state;
+                    reserveTimestamp = timestamp;
+                }
+            }
+
+            if (!conflict && reserveLevel.takeReserve(reserveState, reserveTimestamp)) {
+                return reserveTimestamp;
             }
-            return timestamp;
-        } finally {
-            lock.release();
         }
     }
 
-    public Long nextAvailableTimestamp(){
-        return nextAvailableTimestamp(0L);
+    public Long reserve(Long levelIndex) {
+        return reserve(levelIndex.intValue());
     }
 
-    public Long reserve(Long levelIndex) {
-        lock.acquire();
+    public long reserve() {
+        return reserve(0);
+    }
+
+    //not atomic with respect to concurrent reservations
+    public long reserveAll(long millisApart) {
+        long tsToSet = clock.millis();
+        for (Level level : levels) {
+            level.takeAll(tsToSet + millisApart);
+        }
+        return 0L;
+    }
+
+    public Long reserveAll(Long millisApart) {
+        return reserveAll(millisApart.longValue());
+    }
+
+    //blocks until a token is taken from the level or above, an interrupt is kept pending until then
+    public void acquire(int level) {
         try {
-            Long now = clock.millis();
-            Optional<TokenLevel> reserveLevel = Optional.empty();
-
-            for (Long i=levelIndex; i<levels.length; i++) {
-                TokenLevel level = levels[i.intValue()];
-                int next = (level.index + 1) % level.timestamps.length;
-                AtomicLong nextSlot = level.timestamps[next];
-                Long nextAvailableTimestamp = nextSlot.get() + windowMilli;
-                if (nextAvailableTimestamp <= now) {
-                    nextSlot.set(now);
-                    level.timestampsWithOffset[next].set(now + windowMilli);
-                    level.index = next;
-                    level.reserveTaken = 0L;
-                    return 0L;
+            await(level, false, 0L, false);
+        } catch (InterruptedException e) {
+            //only thrown when interruptible
+            throw new AssertionError(e);
+        }
+    }
+
+    public void acquire() {
+        acquire(0);
+    }
+
+    //false if no token could be taken from the level or above within the timeout
+    public boolean acquire(int level, long timeout, TimeUnit unit) throws InterruptedException {
+        return await(level, true, System.nanoTime() + unit.toNanos(timeout), true);
+    }
+
+    public void acquireInterruptibly(int level) throws InterruptedException {
+        await(level, false, 0L, true);
+    }
+
+    public void acquireInterruptibly() throws InterruptedException {
+        acquireInterruptibly(0);
+    }
+
+    //waiters queue in arrival order; only the head parks until the next available timestamp, and hands over to the next
+    //waiter once it has a token or gives up, so a freed token wakes a single thread
+    private boolean await(int level, boolean timed, long deadline, boolean interruptible) throws InterruptedException {
+        ConcurrentLinkedQueue<Thread> queue = waiters[level];
+        if (queue.isEmpty() && tryAcquire(level)) {
+            return true;
+        }
+        Thread current = Thread.currentThread();
+        boolean interrupted = false;
+        queue.add(current);
+        try {
+            while (true) {
+                boolean head = queue.peek() == current;
+                if (head && tryAcquire(level)) {
+                    return true;
                 }
-                if (!reserveLevel.isPresent()) {
-                    reserveLevel = Optional.of(level);
+                long parkNanos = head
+                        ? Math.max(TimeUnit.MILLISECONDS.toNanos(nextAvailableTimestamp(level) - clock.millis()), MIN_PARK_NANOS)
+                        : Long.MAX_VALUE;
+                if (timed) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0L) {
+                        return false;
+                    }
+                    parkNanos = Math.min(parkNanos, remaining);
+                }
+                if (parkNanos == Long.MAX_VALUE) {
+                    LockSupport.park(this);
                 } else {
-                    if (level.peekReserve() < reserveLevel.get().peekReserve()) {
-                        reserveLevel = Optional.of(level);
+                    LockSupport.parkNanos(this, parkNanos);
+                }
+                if (Thread.interrupted()) {
+                    if (interruptible) {
+                        throw new InterruptedException();
                     }
+                    interrupted = true;
                 }
             }
-
-            return reserveLevel.get().takeReserve();
         } finally {
-            lock.release();
+            queue.remove(current);
+            Thread next = queue.peek();
+            if (next != null) {
+                LockSupport.unpark(next);
+            }
+            if (interrupted) {
+                current.interrupt();
+            }
         }
     }
 
-    public Long reserve() {
-        return reserve(0L);
+    //completes once a token is taken from the level or above, on the calling thread if one is available now and on the
+    //executor otherwise, never on the timer thread shared by all instances; cancelling the future gives up the place in
+    //the queue
+    public CompletableFuture<Void> acquireAsync(int level, Executor executor) {
+        Objects.requireNonNull(executor, "executor");
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        ConcurrentLinkedQueue<AsyncWaiter> queue = asyncWaiters[level];
+        if (queue.isEmpty() && tryAcquire(level)) {
+            future.complete(null);
+            return future;
+        }
+        queue.add(new AsyncWaiter(future, executor));
+        drainAsync(level);
+        return future;
     }
 
-    public Long reserveAll(Long millisApart) {
-        lock.acquire();
-        try {
-            Long tsToSet = clock.millis();
-            for (TokenLevel level : levels) {
-                level.reserveTaken = 0L;
-                for (Long i=0L; i<levels.length; i++) {
-                    level.timestamps[i.intValue()].set(tsToSet + millisApart);
-                    level.timestampsWithOffset[i.intValue()].set(tsToSet + millisApart + windowMilli);
+    public CompletableFuture<Void> acquireAsync(int level) {
+        return acquireAsync(level, ForkJoinPool.commonPool());
+    }
+
+    public CompletableFuture<Void> acquireAsync() {
+        return acquireAsync(0);
+    }
+
+    //grants tokens to async waiters in arrival order, then leaves a single retry for the head on the timer wheel at the
+    //next available timestamp, so pending futures cost nothing until they reach the head of the queue
+    private void drainAsync(int level) {
+        ConcurrentLinkedQueue<AsyncWaiter> queue = asyncWaiters[level];
+        while (!queue.isEmpty() && asyncDraining.compareAndSet(level, 0, 1)) {
+            AsyncWaiter head;
+            while ((head = queue.peek()) != null) {
+                if (head.future.isDone()) {
+                    queue.poll();
+                } else if (tryAcquire(level)) {
+                    queue.poll();
+                    head.future.completeAsync(() -> null, head.executor);
+                } else {
+                    long delayMillis = nextAvailableTimestamp(level) - clock.millis();
+                    TIMER.schedule(() -> {
+                        asyncDraining.set(level, 0);
+                        drainAsync(level);
+                    }, delayMillis, TimeUnit.MILLISECONDS);
+                    return;
                 }
             }
-            return 0L;
-        } finally {
-            lock.release();
+            //a waiter added after the queue was seen empty but before the release is picked up by the next pass
+            asyncDraining.set(level, 0);
         }
     }
 
+    private static final class AsyncWaiter {
+        private final CompletableFuture<Void> future;
+        private final Executor executor;
 
+        private AsyncWaiter(CompletableFuture<Void> future, Executor executor) {
+            this.future = future;
+            this.executor = executor;
+        }
+    }
 
-    public boolean get(Long level) {
-        lock.acquire();
-        try {
-            TokenLevel tLevel = levels[level.intValue()];
-            int next = (tLevel.index + 1) % tLevel.timestamps.length;
-            AtomicLong nextSlot = tLevel.timestamps[next];
-            long now = clock.millis();
-            boolean expired = ( now - nextSlot.get() ) >= windowMilli;
-            if (expired) {
-                nextSlot.set(now);
-                tLevel.index = next;
-            }
-            return expired;
-        } finally {
-            lock.release();
+    //takes a token from the level or above if one is available now, without taking a reserve otherwise
+    private boolean tryAcquire(int levelIndex) {
+        long now = clock.millis();
+        while (true) {
+            boolean conflict = false;
+            for (int i=levelIndex; i<levels.length; i++) {
+                Level level = levels[i];
+                int claim = level.claim(level.state.get(), now, true);
+                if (claim == CLAIMED) {
+                    return true;
+                }
+                if (claim == CONFLICT) {
+                    conflict = true;
+                    break;
+                }
+            }
+            if (!conflict) {
+                return false;
+            }
+        }
+    }
+
+    public boolean get(int level) {
+        Level tLevel = levels[level];
+        long now = clock.millis();
+        while (true) {
+            int claim = tLevel.claim(tLevel.state.get(), now, false);
+            if (claim != CONFLICT) {
+                return claim == CLAIMED;
+            }
         }
     }
 
+    public boolean get(Long level) {
+        return get(level.intValue());
+    }
+
     public boolean get() {
-        return get(0L);
+        return get(0);
     }
 
-    public Long availableTokensAfter(Long levelIndex, Long timestampInclusive) {
-        lock.acquire();
-        try {
-            Long count = 0L;
-            for (Long i=levelIndex; i<levels.length; i++) {
-                count += levels[i.intValue()].availableTokensAfter(timestampInclusive);
-            }
-            return count;
-        } finally {
-            lock.release();
+    public long availableTokensAfter(int levelIndex, long timestampInclusive) {
+        long count = 0L;
+        for (int i=levelIndex; i<levels.length; i++) {
+            count += levels[i].availableTokensAfter(timestampInclusive);
         }
+        return count;
     }
 
-    public Long availableTokensAfter(Long timestampInclusive) {
-        return availableTokensAfter(0L, timestampInclusive);
+    public Long availableTokensAfter(Long levelIndex, Long timestampInclusive) {
+        return availableTokensAfter(levelIndex.intValue(), timestampInclusive.longValue());
+    }
+
+    public long availableTokensAfter(long timestampInclusive) {
+        return availableTokensAfter(0, timestampInclusive);
+    }
+
+    private static long pack(int sequence, int reserveTaken) {
+        return ((long) sequence << SEQUENCE_SHIFT) | ((long) reserveTaken << RESERVE_SHIFT);
+    }
+
+    private static int sequence(long state) {
+        return (int) (state >>> SEQUENCE_SHIFT);
+    }
+
+    private static int reserveTaken(long state) {
+        return (int) (state >>> RESERVE_SHIFT) & Integer.MAX_VALUE;
     }
 
-    private class TokenLevel {
-        private final Long levelNumTokens;
-        private final AtomicLong[] timestamps;
-        private final AtomicLong[] timestampsWithOffset;
-        private volatile int index;
-        private volatile Long reserveTaken;
-        
-        private TokenLevel(Long levelNumTokens, Long now) {
+    private static boolean isClaiming(long state) {
+        return (state & CLAIMING) != 0L;
+    }
+
+    private abstract class Level {
+        protected final int levelIndex;
+        protected final int levelNumTokens;
+        protected final AtomicLong state;
+
+        protected Level(int levelIndex, int levelNumTokens, long initialState) {
+            this.levelIndex = levelIndex;
             this.levelNumTokens = levelNumTokens;
-            this.reserveTaken = 0L;
-            this.timestamps = LongStream.range(0, levelNumTokens).mapToObj(i -> new AtomicLong(now - windowMilli)).toArray(AtomicLong[]::new);
-            this.timestampsWithOffset = LongStream.range(0, levelNumTokens).mapToObj(i -> new AtomicLong(now)).toArray(AtomicLong[]::new);
+            this.state = new AtomicLong(initialState);
+        }
+
+        //updates the cached next available timestamp after a change, again if the state changed meanwhile, so that a
+        //delayed update never overwrites a later one; a claim in progress updates it once it completes
+        protected void updateNextAvailable() {
+            long current = state.get();
+            while (!isInProgress(current)) {
+                nextAvailable.set(levelIndex, nextAvailableTimestamp(current));
+                long updated = state.get();
+                if (updated == current) {
+                    return;
+                }
+                current = updated;
+            }
+        }
+
+        //true if the state is an update in progress, to be completed by the thread making it or one finding it
+        boolean isInProgress(long current) {
+            return false;
+        }
+
+        abstract long nextAvailableTimestamp(long current);
+
+        //takes the next token if it is available at the given time, given the state it was read in
+        abstract int claim(long current, long now, boolean resetReserve);
+
+        abstract long peekReserve(long current);
+
+        //false if the state or the reserve taken changed since the reserve timestamp was found
+        abstract boolean takeReserve(long current, long reserveTimestamp);
+
+        abstract long availableTokensAfter(long timestampInclusive);
+
+        //marks every token as taken at the given timestamp, with no reserve taken
+        abstract void takeAll(long timestamp);
+    }
+
+    private class TokenLevel extends Level {
+        //sequence wraps at a multiple of the number of tokens, so that the index is the sequence modulo the number of tokens
+        private final int sequenceCycle;
+        //ring of the time each token was last taken, contiguous in memory; a token frees up a window after its timestamp
+        private final AtomicLongArray timestamps;
+
+        private TokenLevel(int levelIndex, int levelNumTokens, long now) {
+            super(levelIndex, levelNumTokens, pack(0, 0));
+            this.sequenceCycle = levelNumTokens * (Integer.MAX_VALUE / levelNumTokens);
+            this.timestamps = new AtomicLongArray(levelNumTokens);
+            for (int i=0; i<levelNumTokens; i++) {
+                timestamps.set(i, now - windowMilli);
+            }
+        }
+
+        private int index(long state) {
+            return sequence(state) % levelNumTokens;
+        }
+
+        @Override
+        boolean isInProgress(long current) {
+            return isClaiming(current);
+        }
+
+        private int nextSequence(long state) {
+            return (sequence(state) + 1) % sequenceCycle;
         }
 
-        private Long availableTokensAfter(Long timestampInclusive) {
-            if (timestamps[index].get() + windowMilli <= timestampInclusive) {
+        //claims the slot after the index of the given state if it has expired, a claim in progress is completed first;
+        //the sequence changes on every claim, so a stale state can never be mistaken for the current one
+        @Override
+        int claim(long current, long now, boolean resetReserve) {
+            if (isClaiming(current)) {
+                complete(current, clock.millis());
+                return CONFLICT;
+            }
+            int next = nextSequence(current) % levelNumTokens;
+            long slotTimestamp = timestamps.get(next);
+            if (now - slotTimestamp < windowMilli) {
+                return UNAVAILABLE;
+            }
+            long claiming = current | CLAIMING | (resetReserve ? RESET : 0L);
+            if (!state.compareAndSet(current, claiming)) {
+                return CONFLICT;
+            }
+            timestamps.compareAndSet(next, slotTimestamp, now);
+            complete(claiming, now);
+            return CLAIMED;
+        }
+
+        //a thread finding a claim in progress records it with its own, later, clock reading if the claiming thread has not
+        //yet, which can only keep the slot taken for longer, then publishes the slot as the new index
+        private void complete(long claiming, long now) {
+            int next = nextSequence(claiming) % levelNumTokens;
+            long slotTimestamp = timestamps.get(next);
+            while (now - slotTimestamp >= windowMilli && state.get() == claiming && !timestamps.compareAndSet(next, slotTimestamp, now)) {
+                slotTimestamp = timestamps.get(next);
+            }
+            boolean resetReserve = (claiming & RESET) != 0L;
+            state.compareAndSet(claiming, pack(nextSequence(claiming), resetReserve ? 0 : reserveTaken(claiming)));
+            updateNextAvailable();
+        }
+
+        private long currentState() {
+            long current = state.get();
+            while (isClaiming(current)) {
+                complete(current, clock.millis());
+                current = state.get();
+            }
+            return current;
+        }
+
+        //quirk kept from the original, only the first slots up to the number of levels are marked as taken
+        @Override
+        void takeAll(long timestamp) {
+            long current = currentState();
+            while (!state.compareAndSet(current, pack(sequence(current), 0))) {
+                current = currentState();
+            }
+            for (int i=0; i<levels.length; i++) {
+                timestamps.set(i, timestamp);
+            }
+            updateNextAvailable();
+        }
+
+        //slots are taken in ring order, so from the one after the index their timestamps are in order, and the tokens
+        //freed up by the given time are found by a binary search of the rotated ring
+        @Override
+        long availableTokensAfter(long timestampInclusive) {
+            int index = index(currentState());
+            if (timestamps.get(index) + windowMilli <= timestampInclusive) {
                 return levelNumTokens;
-            } else {
-                int i = (index + 1) % timestamps.length;
-                Long count = 0L;
-                while (timestamps[i].get() + windowMilli <= timestampInclusive) {
-                    count++;
-                    i = (i + 1) % timestamps.length;
+            }
+            int low = 0;
+            int high = levelNumTokens - 1;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (timestamps.get((index + 1 + mid) % levelNumTokens) + windowMilli <= timestampInclusive) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
                 }
-                return count;
             }
+            return low;
         }
 
-        private Long peek(){
-            int next = (index + 1) % timestamps.length;
-            AtomicLong nextSlot = timestamps[next];
-            return nextSlot.get() + windowMilli;
+        @Override
+        long nextAvailableTimestamp(long current) {
+            int next = (index(current) + 1) % levelNumTokens;
+            return timestamps.get(next) + windowMilli;
         }
 
-        private Long peekReserve() {
-            Long offsetIndex = (index + Math.min(reserveTaken + 1, levelNumTokens)) % timestampsWithOffset.length;
-            return timestampsWithOffset[offsetIndex.intValue()].get();
+        @Override
+        long peekReserve(long state) {
+            int offsetIndex = (int) ((index(state) + Math.min(reserveTaken(state) + 1L, levelNumTokens)) % levelNumTokens);
+            return timestamps.get(offsetIndex) + windowMilli;
         }
 
-        private Long takeReserve() {
-            Long reserveTimestamp = peekReserve();
-            if (reserveTaken < levelNumTokens) {
-                reserveTaken++;
+        @Override
+        boolean takeReserve(long current, long reserveTimestamp) {
+            int reserveTaken = reserveTaken(current);
+            if (reserveTaken >= levelNumTokens) {
+                return state.get() == current;
             }
-            return reserveTimestamp;
+            return state.compareAndSet(current, pack(sequence(current), reserveTaken + 1));
+        }
+    }
+
+    //virtual scheduling with time scaled by the number of tokens, so that the emission interval of window / tokens
+    //milliseconds is the window itself; the state is the theoretical arrival time, and a token is available while it is
+    //within the tolerance of a burst of all tokens less one of the scaled now
+    private class GcraLevel extends Level {
+        private final long origin;
+        private final long tolerance;
+        //reserve taken in the low 32 bits, tagged with the low 32 bits of the arrival time it was taken against,
+        //so that any change of the arrival time clears it
+        private final AtomicLong reserve;
+
+        private GcraLevel(int levelIndex, int levelNumTokens, long now) {
+            super(levelIndex, levelNumTokens, 0L);
+            this.origin = now;
+            this.tolerance = (levelNumTokens - 1L) * windowMilli;
+            this.reserve = new AtomicLong();
+        }
+
+        private long scaled(long millis) {
+            return (millis - origin) * levelNumTokens;
+        }
+
+        //first millisecond at or after the scaled time
+        private long millis(long scaled) {
+            return origin - Math.floorDiv(-scaled, (long) levelNumTokens);
+        }
+
+        @Override
+        int claim(long current, long now, boolean resetReserve) {
+            long nowScaled = scaled(now);
+            long arrival = Math.max(current, nowScaled);
+            if (arrival - tolerance > nowScaled) {
+                return UNAVAILABLE;
+            }
+            if (!state.compareAndSet(current, arrival + windowMilli)) {
+                return CONFLICT;
+            }
+            updateNextAvailable();
+            return CLAIMED;
+        }
+
+        private int reserveTaken(long current, long reserveState) {
+            return (int) (reserveState >>> 32) == (int) current ? (int) reserveState : 0;
+        }
+
+        private long reserveTimestamp(long current, int reserveTaken) {
+            return millis(current - tolerance + Math.min(reserveTaken, levelNumTokens - 1) * windowMilli);
+        }
+
+        @Override
+        long peekReserve(long current) {
+            return reserveTimestamp(current, reserveTaken(current, reserve.get()));
+        }
+
+        @Override
+        boolean takeReserve(long current, long reserveTimestamp) {
+            long reserveState = reserve.get();
+            int reserveTaken = reserveTaken(current, reserveState);
+            if (reserveTimestamp(current, reserveTaken) != reserveTimestamp) {
+                return false;
+            }
+            if (reserveTaken < levelNumTokens
+                    && !reserve.compareAndSet(reserveState, ((long) (int) current << 32) | (reserveTaken + 1))) {
+                return false;
+            }
+            return state.get() == current;
+        }
+
+        @Override
+        long nextAvailableTimestamp(long current) {
+            return millis(current - tolerance);
+        }
+
+        @Override
+        long availableTokensAfter(long timestampInclusive) {
+            long at = scaled(timestampInclusive);
+            long arrival = state.get();
+            if (arrival <= at || windowMilli == 0L) {
+                return levelNumTokens;
+            }
+            return Math.max(0L, Math.floorDiv(at - arrival, windowMilli) + levelNumTokens);
+        }
+
+        @Override
+        void takeAll(long timestamp) {
+            reserve.set(0L);
+            state.set(scaled(timestamp) + tolerance + windowMilli);
+            updateNextAvailable();
         }
     }
 
@@ -236,7 +685,7 @@ public class Tokens {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         Tokens tokens = (Tokens) o;
-        return Objects.equals(totalNumTokens, tokens.totalNumTokens) && Objects.equals(windowMilli, tokens.windowMilli);
+        return totalNumTokens == tokens.totalNumTokens && windowMilli == tokens.windowMilli;
     }
 
     @Override
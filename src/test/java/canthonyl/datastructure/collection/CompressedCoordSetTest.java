@@ -0,0 +1,70 @@
+package canthonyl.datastructure.collection;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Objects;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CompressedCoordSetTest {
+
+    private CoordSet set;
+
+    @BeforeEach
+    public void setup(){
+        set = new CoordSet(1003, 501);
+        set.add(0, 0, 1002, 199);
+        set.add(100, 300, 103, 420);
+        set.add(1002, 500);
+        set.remove(37, 50, 37, 60);
+    }
+
+    @Test
+    public void mostlyEmptyOrFullCellsCompressToFewRuns(){
+        CompressedCoordSet compressed = CompressedCoordSet.of(set);
+        assertEquals(set.count(), compressed.count());
+        assertTrue(compressed.getRunCount() < 100);
+        assertTrue(compressed.getLiteralCount() < 100);
+        assertTrue(compressed.serializedSize() * 10 < set.serializedSize());
+    }
+
+    @Test
+    public void containsMatchesSet(){
+        CompressedCoordSet compressed = CompressedCoordSet.of(set);
+        for (Integer y = 0; y < set.getHeight(); y += 3) {
+            for (Integer x = 0; x < set.getWidth(); x += 7) {
+                assertEquals(set.contains(x, y), compressed.contains(x, y));
+            }
+        }
+        assertTrue(compressed.contains(1002, 500));
+        assertFalse(compressed.contains(37, 55));
+        assertFalse(compressed.contains(1003, 0));
+    }
+
+    @Test
+    public void filterMatchesSetFilter(){
+        CompressedCoordSet compressed = CompressedCoordSet.of(set);
+        assertEquals(set.filter(30, 40, 105, 310).toString(), compressed.filter(30, 40, 105, 310).toString());
+        assertEquals(set.filter(990, 190, 1002, 500).toString(), compressed.filter(990, 190, 1002, 500).toString());
+        CoordSet decoded = compressed.decode();
+        assertEquals(set.count(), decoded.count());
+        assertEquals(true, Objects.equals(set, decoded));
+    }
+
+    @Test
+    public void roundTripsThroughBuffer(){
+        CompressedCoordSet compressed = CompressedCoordSet.of(set);
+        ByteBuffer buffer = ByteBuffer.allocate(compressed.serializedSize());
+        compressed.writeTo(buffer);
+        assertFalse(buffer.hasRemaining());
+        buffer.flip();
+        CompressedCoordSet read = CompressedCoordSet.readFrom(buffer);
+        assertFalse(buffer.hasRemaining());
+        assertEquals(compressed.count(), read.count());
+        assertEquals(true, Objects.equals(set, read.decode()));
+        assertThrows(IllegalArgumentException.class, () -> CompressedCoordSet.readFrom(ByteBuffer.allocate(64)));
+    }
+
+}
@@ -0,0 +1,128 @@
+package canthonyl.datastructure.collection;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ConnectedComponentsTest {
+
+    @Test
+    public void diagonalCoordsAreConnectedOnlyWithEightConnectivity(){
+        CoordSet set = new CoordSet(20, 20);
+        set.add(0, 0, 3, 0);
+        set.add(4, 1);
+        set.add(10, 10, 12, 12);
+
+        ConnectedComponents four = set.components(4);
+        assertEquals(3, four.count());
+        assertEquals(4, four.getSize(0));
+        assertEquals(1, four.getSize(1));
+        assertEquals(9, four.getSize(2));
+
+        ConnectedComponents eight = set.components(8);
+        assertEquals(2, eight.count());
+        assertEquals(5, eight.getSize(0));
+        assertEquals(0, eight.getMinX(0));
+        assertEquals(0, eight.getMinY(0));
+        assertEquals(4, eight.getMaxX(0));
+        assertEquals(1, eight.getMaxY(0));
+        assertEquals(1, eight.labelAt(11, 11));
+        assertEquals(-1, eight.labelAt(5, 5));
+
+        assertThrows(IllegalArgumentException.class, () -> set.components(6));
+    }
+
+    @Test
+    public void componentsMatchFloodFill(){
+        Random random = new Random(17);
+        for (int i = 0; i < 30; i++) {
+            Integer width = 1 + random.nextInt(90);
+            Integer height = 1 + random.nextInt(90);
+            CoordSet set = new CoordSet(width, height);
+            for (int k = 0; k < width * height / 3; k++) {
+                set.add(random.nextInt(width), random.nextInt(height));
+            }
+            for (Integer connectivity : new Integer[]{4, 8}) {
+                ConnectedComponents components = set.components(connectivity);
+                List<CoordSet> sets = components.toList();
+                assertEquals(components.count(), sets.size());
+
+                int[][] labels = floodFill(set, connectivity);
+                Integer total = 0;
+                for (Integer y = 0; y < height; y++) {
+                    for (Integer x = 0; x < width; x++) {
+                        Integer label = components.labelAt(x, y);
+                        assertEquals(labels[y][x], label);
+                        if (label >= 0) {
+                            assertTrue(sets.get(label).contains(x, y));
+                        }
+                    }
+                }
+                for (Integer c = 0; c < components.count(); c++) {
+                    assertEquals(components.getSize(c), sets.get(c).count());
+                    assertEquals(sets.get(c).toString(), components.get(c).toString());
+                    total += components.getSize(c);
+                }
+                assertEquals(set.count(), total);
+            }
+        }
+    }
+
+    @Test
+    public void labelsLargeMask(){
+        CoordSet set = new CoordSet(4000, 4000);
+        for (Integer y = 0; y < 4000; y += 4) {
+            set.add(0, y, 3999, y + 1);
+        }
+        set.add(2000, 0, 2000, 3999);
+        assertEquals(1, set.components(4).count());
+        set.remove(2000, 0, 2000, 3999);
+        ConnectedComponents components = set.components(8);
+        assertEquals(2000, components.count());
+
+        List<CoordSet> sets = components.toList();
+        assertEquals(2000, sets.size());
+        for (Integer c = 0; c < sets.size(); c++) {
+            assertEquals(c % 2 == 0 ? 4000 : 3998, sets.get(c).count());
+        }
+        assertTrue(sets.get(1999).contains(3999, 3997));
+    }
+
+    private int[][] floodFill(CoordSet set, Integer connectivity) {
+        Integer width = set.getWidth();
+        Integer height = set.getHeight();
+        int[][] labels = new int[height][width];
+        for (int[] row : labels) java.util.Arrays.fill(row, -1);
+        int next = 0;
+        Deque<int[]> queue = new ArrayDeque<>();
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if (labels[y][x] >= 0 || !set.contains(x, y)) continue;
+                labels[y][x] = next;
+                queue.add(new int[]{x, y});
+                while (!queue.isEmpty()) {
+                    int[] p = queue.poll();
+                    for (int dy = -1; dy <= 1; dy++) {
+                        for (int dx = -1; dx <= 1; dx++) {
+                            if ((dx == 0 && dy == 0) || (connectivity == 4 && dx != 0 && dy != 0)) continue;
+                            int nx = p[0] + dx;
+                            int ny = p[1] + dy;
+                            if (nx >= 0 && ny >= 0 && nx < width && ny < height && labels[ny][nx] < 0 && set.contains(nx, ny)) {
+                                labels[ny][nx] = next;
+                                queue.add(new int[]{nx, ny});
+                            }
+                        }
+                    }
+                }
+                next++;
+            }
+        }
+        return labels;
+    }
+
+}
@@ -1,15 +1,38 @@
 package canthonyl.datastructure.collection;
 
+import canthonyl.datastructure.collection.store.NativeCellStore;
+import canthonyl.datastructure.collection.store.SparseCellStore;
 import canthonyl.fixture.Point;
 import canthonyl.fixture.ArrayProjection;
+import com.sun.jna.Memory;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
-
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.PrimitiveIterator;
+import java.util.Random;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.BiConsumer;
 import java.util.function.BiPredicate;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
@@ -1814,6 +1837,703 @@ public class CoordSetTest {
 
     }
 
+    @Test
+    public void nativeCellsBehaveSameAsHeapCells(){
+        CoordSet heap = new CoordSet(24, 16);
+        CoordSet nativeSet = new CoordSet(3, 2, 8, null);
+        heap.add(3, 2, 20, 9);
+        nativeSet.add(3, 2, 20, 9);
+
+        assertEquals(heap.count(), nativeSet.count());
+        assertEquals(true, Objects.equals(heap, nativeSet));
+        assertEquals(heap.count(), heap.intersect(nativeSet).count());
+        assertEquals(true, Objects.equals(heap, nativeSet.union(heap)));
+    }
+
+    @Test
+    public void nativeCellsShareCallerMemory(){
+        Memory memory = new Memory(2 * 2 * 8);
+        memory.clear();
+        CoordSet set = new CoordSet(2, 2, 8, memory);
+
+        set.add(9, 0);
+        assertEquals(1L << 1, memory.getLong(8));
+
+        memory.setLong(3 * 8, 1L << 63);
+        assertEquals(true, set.contains(15, 15));
+        assertEquals(false, set.contains(14, 15));
+    }
+
+    @Test
+    public void nativeCellsShorterThanLongStayWithinCell(){
+        Memory memory = new Memory(2 * 4);
+        memory.clear();
+        NativeCellStore store = new NativeCellStore(2, 1, 4, memory);
+
+        store.set(0, 0, 0xFFFFFFFFL);
+        store.set(1, 0, 0x80000001L);
+        assertEquals(0xFFFFFFFFL, store.get(0, 0));
+        assertEquals(0x80000001L, store.get(1, 0));
+        assertEquals(0x80000001FFFFFFFFL, memory.getLong(0));
+    }
+
+    @Test
+    public void mappedSetReopensWithCoordsAfterForce(@TempDir Path dir){
+        Path file = dir.resolve("layer.cset");
+        CoordSet mapped = new CoordSet(file, 100, 50);
+        mapped.add(10, 10, 89, 20);
+        mapped.add(5, 45);
+        mapped.force();
+
+        CoordSet expected = new CoordSet(100, 50);
+        expected.add(10, 10, 89, 20);
+        expected.add(5, 45);
+
+        CoordSet reopened = new CoordSet(file);
+        assertEquals(100, reopened.getWidth());
+        assertEquals(50, reopened.getHeight());
+        assertEquals(expected.count(), reopened.count());
+        assertEquals(true, Objects.equals(expected, reopened));
+    }
+
+    @Test
+    public void mappedSetReopensWithCoordsWithoutForce(@TempDir Path dir){
+        Path file = dir.resolve("layer.cset");
+        CoordSet mapped = new CoordSet(file, 100, 50);
+        mapped.add(10, 10, 89, 20);
+        mapped.force();
+        mapped.add(5, 45);
+
+        CoordSet expected = new CoordSet(100, 50);
+        expected.add(10, 10, 89, 20);
+        expected.add(5, 45);
+
+        CoordSet reopened = new CoordSet(file);
+        assertEquals(expected.count(), reopened.count());
+        assertEquals(true, Objects.equals(expected, reopened));
+        assertEquals(expected.count(), reopened.intersect(expected).count());
+    }
+
+    @Test
+    public void mappedSetRejectsTruncatedFile(@TempDir Path dir) throws Exception {
+        Path file = dir.resolve("layer.cset");
+        new CoordSet(file, 100, 50).force();
+        byte[] bytes = Files.readAllBytes(file);
+        Path truncated = dir.resolve("truncated.cset");
+        Files.write(truncated, Arrays.copyOf(bytes, bytes.length - Long.BYTES));
+
+        assertThrows(IllegalArgumentException.class, () -> new CoordSet(truncated));
+    }
+
+    @Test
+    public void sparseSetMatchesHeapSet(){
+        CoordSet heapA = new CoordSet(200, 120);
+        CoordSet heapB = new CoordSet(200, 120);
+        CoordSet sparseA = CoordSet.sparse(200, 120);
+        CoordSet sparseB = CoordSet.sparse(200, 120);
+        for (CoordSet set : new CoordSet[]{heapA, sparseA}) {
+            set.add(10, 10, 150, 10);
+            set.add(10, 10, 10, 100);
+            set.add(60, 40, 61, 90);
+        }
+        for (CoordSet set : new CoordSet[]{heapB, sparseB}) {
+            set.add(5, 5, 100, 50);
+            set.remove(20, 20, 30, 30);
+        }
+
+        assertEquals(heapA.count(), sparseA.count());
+        assertEquals(true, Objects.equals(heapA.intersect(heapB), sparseA.intersect(sparseB)));
+        assertEquals(true, Objects.equals(heapA.union(heapB), sparseA.union(sparseB)));
+        assertEquals(true, Objects.equals(heapA.retain(heapB), sparseA.retain(sparseB)));
+        assertEquals(true, Objects.equals(heapA.filter(12, 8, 70, 60), sparseA.filter(12, 8, 70, 60)));
+        assertEquals(heapB.containsAllCoordsIn(heapA), sparseB.containsAllCoordsIn(sparseA));
+        assertEquals(heapB.containsAnyCoordsIn(heapA), sparseB.containsAnyCoordsIn(sparseA));
+    }
+
+    @Test
+    public void sparseSetOnlyMaterializesOccupiedCells(){
+        CoordSet set = CoordSet.sparse(100000, 100000);
+        set.add(0, 50000, 99999, 50000);
+        set.add(500, 0, 500, 99999);
+        assertEquals(199999, set.count());
+        assertTrue(set.contains(500, 77777));
+        assertFalse(set.contains(501, 77777));
+
+        CoordSet other = CoordSet.sparse(100000, 100000);
+        other.add(400, 49990, 600, 50010);
+        assertEquals(201 + 20, set.intersect(other).count());
+        assertEquals(199999 + 201 * 21 - 221, set.union(other).count());
+        assertTrue(((SparseCellStore) set.union(other).getCellStore()).size() < 26000);
+
+        assertEquals(221, set.remove(400, 49990, 600, 50010));
+        assertEquals(199999 - 221, set.count());
+    }
+
+    @Test
+    public void parallelismWithoutThresholdUsesDefault(){
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            CoordSet a = new CoordSet(1000, 1000);
+            CoordSet b = new CoordSet(1000, 1000);
+            a.setParallelism(pool, null);
+            a.add(0, 0, 999, 499);
+            b.add(0, 250, 999, 999);
+
+            assertEquals(250 * 1000, a.intersect(b).count());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void parallelBulkOperationsMatchSequential(){
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            CoordSet seqA = new CoordSet(800, 600);
+            CoordSet seqB = new CoordSet(800, 600);
+            CoordSet parA = new CoordSet(800, 600);
+            CoordSet parB = new CoordSet(800, 600);
+            parA.setParallelism(pool, 100);
+            parB.setParallelism(pool, 100);
+            for (CoordSet set : new CoordSet[]{seqA, parA}) {
+                set.add(10, 10, 700, 400);
+                set.remove(100, 50, 300, 350);
+                set.add(0, 599, 799, 599);
+            }
+            for (CoordSet set : new CoordSet[]{seqB, parB}) {
+                set.add(200, 0, 250, 599);
+                set.add(0, 300, 799, 320);
+            }
+
+            assertEquals(true, Objects.equals(seqA.intersect(seqB), parA.intersect(parB)));
+            assertEquals(seqA.intersect(seqB).count(), parA.intersect(parB).count());
+            CoordSet seqUnion = seqA.union(seqB);
+            CoordSet parUnion = parA.union(parB);
+            assertEquals(true, Objects.equals(seqUnion, parUnion));
+            assertEquals(seqUnion.count(), parUnion.count());
+            assertEquals(seqB.containsAllCoordsIn(seqA), parB.containsAllCoordsIn(parA));
+            assertEquals(true, parUnion.containsAllCoordsIn(parA));
+            assertEquals(seqB.containsAnyCoordsIn(seqA), parB.containsAnyCoordsIn(parA));
+            assertEquals(seqUnion.removeAll(seqB), parUnion.removeAll(parB));
+            assertEquals(true, Objects.equals(seqUnion, parUnion));
+            assertEquals(seqUnion.count(), parUnion.count());
+            assertEquals(false, parUnion.containsAnyCoordsIn(parB));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void inPlaceAndDestinationOperationsMatchAllocatingOperations(){
+        for (Boolean sparse : new Boolean[]{false, true}) {
+            CoordSet a = sparse ? CoordSet.sparse(120, 90) : new CoordSet(120, 90);
+            CoordSet b = sparse ? CoordSet.sparse(120, 90) : new CoordSet(120, 90);
+            a.add(5, 5, 80, 60);
+            a.remove(20, 20, 30, 30);
+            b.add(40, 30, 119, 89);
+            CoordSet intersection = a.intersect(b);
+            CoordSet union = a.union(b);
+            CoordSet aOnly = a.copy();
+            aOnly.removeAll(b);
+            CoordSet bOnly = b.copy();
+            bOnly.removeAll(a);
+            CoordSet difference = aOnly.union(bOnly);
+
+            CoordSet dest = sparse ? CoordSet.sparse(120, 90) : new CoordSet(120, 90);
+            dest.add(0, 0, 119, 89);
+            assertSameCoords(intersection, CoordSet.and(a, b, dest));
+            assertSameCoords(union, CoordSet.or(a, b, dest));
+            assertSameCoords(difference, CoordSet.xor(a, b, dest));
+            assertSameCoords(difference, CoordSet.symmetricDifference(a, b, dest));
+            assertSameCoords(aOnly, CoordSet.andNot(a, b, dest));
+            assertSameCoords(bOnly, CoordSet.andNot(b, a, dest));
+
+            assertSameCoords(intersection, CoordSet.and(a.copy(), b, a.copy()));
+            assertSameCoords(aOnly, CoordSet.andNot(a, b.copy(), b.copy()));
+            CoordSet bCopy = b.copy();
+            assertSameCoords(aOnly, CoordSet.andNot(a, bCopy, bCopy));
+            CoordSet aCopy = a.copy();
+            assertSameCoords(aOnly, CoordSet.andNot(aCopy, b, aCopy));
+
+            assertSameCoords(intersection, a.copy().and(b));
+            assertSameCoords(union, a.copy().or(b));
+            assertSameCoords(difference, a.copy().xor(b));
+            assertSameCoords(aOnly, a.copy().andNot(b));
+            assertSameCoords(a, a.copy().or(b).andNot(bOnly));
+            assertEquals(0, a.copy().symmetricDifference(a.copy()).count());
+        }
+        assertThrows(IllegalArgumentException.class, () -> new CoordSet(10, 10).and(new CoordSet(10, 11)));
+    }
+
+    @Test
+    public void inPlaceAndDestinationOperationsDoNotAllocate(){
+        CoordSet a = new CoordSet(64, 64);
+        CoordSet b = new CoordSet(64, 64);
+        CoordSet dest = new CoordSet(64, 64);
+        a.add(5, 5, 50, 40);
+        b.add(20, 10, 63, 63);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        for (int i = 0; i < 20_000; i++) {
+            chainOperations(a, b, dest);
+        }
+        long before = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        for (int i = 0; i < 20_000; i++) {
+            chainOperations(a, b, dest);
+        }
+        long allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+        assertTrue(allocated < 100_000L, allocated + " bytes allocated");
+        assertSameCoords(a.copy().or(b).and(a).xor(b).andNot(a), dest);
+    }
+
+    //count() boxes, so the chain is checked once outside the measured loop
+    private void chainOperations(CoordSet a, CoordSet b, CoordSet dest) {
+        CoordSet.and(a, b, dest);
+        CoordSet.or(a, b, dest);
+        CoordSet.xor(a, b, dest);
+        CoordSet.andNot(a, b, dest);
+        CoordSet.or(a, b, dest).and(a).xor(b).andNot(a);
+    }
+
+    private void assertSameCoords(CoordSet expected, CoordSet actual) {
+        assertEquals(true, Objects.equals(expected, actual));
+        assertEquals(expected.count(), actual.count());
+    }
+
+    @Test
+    public void retainDirectionMatchesRetainKernel(){
+        CoordSet set = new CoordSet(8, 8);
+        Random random = new Random(7);
+        RetainDirection[] directions = {RetainDirection.WEST, RetainDirection.EAST, RetainDirection.NORTH, RetainDirection.SOUTH};
+        Integer[][] orientationDirection = {{0, -1}, {0, 1}, {1, -1}, {1, 1}};
+        for (int i = 0; i < 20000; i++) {
+            Long prevStartCell = random.nextLong() & random.nextLong();
+            Long currentStartCell = random.nextLong() & random.nextLong();
+            Long prevCell = random.nextLong() | random.nextLong();
+            Long currentCell = random.nextLong() | random.nextLong();
+            for (int d = 0; d < directions.length; d++) {
+                Long expected = set.retain(Optional.of(prevStartCell), currentStartCell, Optional.of(prevCell), currentCell, orientationDirection[d][0], orientationDirection[d][1]);
+                assertEquals(expected, directions[d].retain(prevStartCell, currentStartCell, prevCell, currentCell));
+                expected = set.retain(Optional.empty(), currentStartCell, Optional.empty(), currentCell, orientationDirection[d][0], orientationDirection[d][1]);
+                assertEquals(expected, directions[d].retain(0L, currentStartCell, 0L, currentCell));
+            }
+        }
+    }
+
+    @Test
+    public void transposeRotatesEveryCoordForAnyDimension(){
+        Random random = new Random(3);
+        for (int i = 0; i < 100; i++) {
+            Integer width = 1 + random.nextInt(40);
+            Integer height = 1 + random.nextInt(40);
+            CoordSet set = i % 2 == 0 ? new CoordSet(width, height) : CoordSet.sparse(width, height);
+            for (int k = 0; k < 10; k++) {
+                Integer x = random.nextInt(width);
+                Integer y = random.nextInt(height);
+                set.add(x, y, Math.min(width - 1, x + random.nextInt(8)), Math.min(height - 1, y + random.nextInt(8)));
+            }
+            CoordSet rotatedLeft = new CoordSet(height, width);
+            CoordSet rotatedRight = new CoordSet(height, width);
+            for (Integer x = 0; x < width; x++) {
+                for (Integer y = 0; y < height; y++) {
+                    if (set.contains(x, y)) {
+                        rotatedLeft.add(y, width - 1 - x);
+                        rotatedRight.add(height - 1 - y, x);
+                    }
+                }
+            }
+            assertEquals(rotatedLeft.toString(), set.transpose(0).toString());
+            assertEquals(rotatedRight.toString(), set.transpose(1).toString());
+            assertEquals(set.count(), set.transpose(1).count());
+        }
+    }
+
+    @Test
+    public void sparseSetIteratesInRowMajorOrderOfCells(){
+        CoordSet heap = new CoordSet(3000, 400);
+        CoordSet sparse = CoordSet.sparse(3000, 400);
+        Random random = new Random(11);
+        for (int i = 0; i < 500; i++) {
+            Integer x = random.nextInt(3000);
+            Integer y = random.nextInt(400);
+            heap.add(x, y);
+            sparse.add(x, y);
+        }
+        long[] expected = heap.coords().toArray();
+
+        List<Long> visited = new ArrayList<>();
+        sparse.forEach((x, y) -> visited.add(CoordSet.pack(x, y)));
+        assertArrayEquals(expected, visited.stream().mapToLong(Long::longValue).toArray());
+        assertArrayEquals(expected, sparse.coords().toArray());
+        List<Long> iterated = new ArrayList<>();
+        sparse.iterator().forEachRemaining((Long coord) -> iterated.add(coord));
+        assertArrayEquals(expected, iterated.stream().mapToLong(Long::longValue).toArray());
+        List<Long> advanced = new ArrayList<>();
+        Spliterator.OfLong spliterator = sparse.spliterator();
+        while (spliterator.tryAdvance((long coord) -> advanced.add(coord))) {}
+        assertArrayEquals(expected, advanced.stream().mapToLong(Long::longValue).toArray());
+    }
+
+    @Test
+    public void sparseParallelStreamRightAfterChangeVisitsEveryCoord(){
+        Random random = new Random(23);
+        for (int i = 0; i < 100; i++) {
+            CoordSet sparse = CoordSet.sparse(4096, 4096);
+            for (int k = 0; k < 20_000; k++) {
+                sparse.add(random.nextInt(4096), random.nextInt(4096));
+            }
+            assertEquals(sparse.count().longValue(), sparse.coords().parallel().count());
+        }
+    }
+
+    @Test
+    public void sparseIteratorSkipsEmptyCells(){
+        CoordSet sparse = CoordSet.sparse(100_000, 100_000);
+        sparse.add(99_990, 99_990);
+        sparse.add(5, 50_000);
+
+        PrimitiveIterator.OfLong iterator = sparse.iterator();
+        assertEquals(CoordSet.pack(5, 50_000), iterator.nextLong());
+        assertEquals(CoordSet.pack(99_990, 99_990), iterator.nextLong());
+        assertFalse(iterator.hasNext());
+    }
+
+    @Test
+    public void compactLargeSparsePlaneMatchesSmallPlane(){
+        CoordSet large = CoordSet.sparse(100_000, 100_000);
+        large.add(10, 10);
+        large.add(50_000, 70_000, 50_003, 70_001);
+        CoordSet small = new CoordSet(200, 200);
+        small.add(10, 10);
+        small.add(150, 170, 153, 171);
+
+        CoordSet compactLarge = large.compact();
+        CoordSet compactSmall = small.compact();
+        assertEquals(compactSmall.getWidth(), compactLarge.getWidth());
+        assertEquals(compactSmall.getHeight(), compactLarge.getHeight());
+        assertEquals(compactSmall.count(), compactLarge.count());
+        assertEquals(compactSmall.toString(), compactLarge.toString());
+    }
+
+    @Test
+    public void iteratesEveryCoordOnce(){
+        for (CoordSet set : new CoordSet[]{new CoordSet(300, 200), CoordSet.sparse(300, 200)}) {
+            set.add(3, 4, 250, 4);
+            set.add(17, 9, 40, 190);
+            set.add(299, 199);
+            set.add(0, 0);
+            Set<Long> expected = new HashSet<>();
+            for (Integer x = 0; x < set.getWidth(); x++) {
+                for (Integer y = 0; y < set.getHeight(); y++) {
+                    if (set.contains(x, y)) expected.add(CoordSet.pack(x, y));
+                }
+            }
+
+            Set<Long> visited = new HashSet<>();
+            set.forEach((x, y) -> assertTrue(visited.add(CoordSet.pack(x, y))));
+            assertEquals(expected, visited);
+
+            Set<Long> iterated = new HashSet<>();
+            PrimitiveIterator.OfLong iterator = set.iterator();
+            while (iterator.hasNext()) {
+                long coord = iterator.nextLong();
+                assertTrue(set.contains(CoordSet.unpackX(coord), CoordSet.unpackY(coord)));
+                assertTrue(iterated.add(coord));
+            }
+            assertEquals(expected, iterated);
+            assertThrows(NoSuchElementException.class, iterator::nextLong);
+
+            assertEquals(expected, set.coords().parallel().boxed().collect(Collectors.toSet()));
+            assertEquals(set.count().longValue(), set.coords().parallel().count());
+            assertEquals(expected.stream().mapToLong(Long::longValue).sum(), set.coords().parallel().sum());
+        }
+    }
+
+    @Test
+    public void projectSendsEachMaximalRunOnce(){
+        Random random = new Random(11);
+        for (CoordSet set : new CoordSet[]{new CoordSet(1000, 40), CoordSet.sparse(1000, 40)}) {
+            set.add(0, 0, 999, 0);
+            set.add(7, 3, 8, 3);
+            set.add(15, 5, 16, 5);
+            for (int k = 0; k < 60; k++) {
+                Integer x = random.nextInt(1000);
+                Integer y = random.nextInt(40);
+                set.add(x, y, Math.min(999, x + random.nextInt(30)), y);
+            }
+
+            List<String> expected = new ArrayList<>();
+            for (Integer y = 0; y < set.getHeight(); y++) {
+                for (Integer x = 0; x < set.getWidth(); x++) {
+                    if (set.contains(x, y) && (x == 0 || !set.contains(x - 1, y))) {
+                        Integer end = x;
+                        while (end + 1 < set.getWidth() && set.contains(end + 1, y)) end++;
+                        expected.add(x + "," + y + "," + end + "," + y);
+                    }
+                }
+            }
+
+            List<String> actual = new ArrayList<>();
+            set.project(new ProjectTarget<String, String>() {
+                public void setConverter(Function<String, String> converter) {}
+                public void updateRange(Integer x1, Integer y1, Integer x2, Integer y2, String value) {
+                    actual.add(x1 + "," + y1 + "," + x2 + "," + y2);
+                }
+            }, "X");
+            assertEquals(expected, actual);
+            assertEquals("0,0,999,0", actual.get(0));
+        }
+    }
+
+    @Test
+    public void projectRectanglesCoversSetWithFewBatchedRanges(){
+        Random random = new Random(5);
+        for (CoordSet set : new CoordSet[]{new CoordSet(600, 600), CoordSet.sparse(600, 600)}) {
+            set.add(50, 50, 549, 549);
+            set.add(0, 0, 9, 0);
+            for (int k = 0; k < 300; k++) {
+                set.add(random.nextInt(40), random.nextInt(600));
+            }
+            String[][] target = new String[600][600];
+            Integer[] batches = {0};
+            List<int[]> ranges = new ArrayList<>();
+            ArrayProjection<String> projection = new ArrayProjection<String>(target) {
+                @Override
+                public void updateRanges(int[] x1, int[] y1, int[] x2, int[] y2, int n, String value) {
+                    batches[0]++;
+                    for (int i = 0; i < n; i++) ranges.add(new int[]{x1[i], y1[i], x2[i], y2[i]});
+                    super.updateRanges(x1, y1, x2, y2, n, value);
+                }
+            };
+            set.projectRectangles(projection, "X");
+
+            CoordSet covered = new CoordSet(600, 600);
+            for (int[] range : ranges) {
+                assertEquals(0, covered.add(range[0], range[1], range[2], range[3]) - (range[2] - range[0] + 1) * (range[3] - range[1] + 1));
+            }
+            assertEquals(set.toString(), covered.toString());
+            for (Integer y = 0; y < 600; y++) {
+                for (Integer x = 0; x < 600; x++) {
+                    assertEquals(set.contains(x, y), "X".equals(target[y][x]));
+                }
+            }
+            assertTrue(ranges.stream().anyMatch(r -> r[0] == 50 && r[1] == 50 && r[2] == 549 && r[3] == 549));
+            assertTrue(ranges.size() < 700);
+            assertTrue(batches[0] <= 3);
+        }
+    }
+
+    @Test
+    public void binaryFormatRoundTripsThroughBuffersAndChannels(@TempDir Path dir) throws Exception {
+        CoordSet set = CoordSet.sparse(1000, 700);
+        set.add(3, 4, 990, 4);
+        set.add(500, 0, 510, 699);
+        set.add(999, 699);
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect((int) set.serializedSize() + 10);
+        buffer.position(10);
+        set.writeTo(buffer);
+        assertEquals(buffer.capacity(), buffer.position());
+        assertEquals(ByteOrder.BIG_ENDIAN, buffer.order());
+        buffer.position(10);
+        CoordSet fromBuffer = CoordSet.readFrom(buffer);
+        assertEquals(buffer.capacity(), buffer.position());
+        assertEquals(set.count(), fromBuffer.count());
+        assertEquals(set.toString(), fromBuffer.toString());
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        set.writeTo(Channels.newChannel(bytes));
+        assertEquals(set.serializedSize(), bytes.size());
+        CoordSet fromChannel = CoordSet.readFrom(Channels.newChannel(new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(set.count(), fromChannel.count());
+        assertEquals(true, Objects.equals(fromBuffer, fromChannel));
+
+        Path file = dir.resolve("layer.cset");
+        Files.write(file, bytes.toByteArray());
+        CoordSet mapped = new CoordSet(file);
+        assertEquals(set.count(), mapped.count());
+        assertEquals(true, Objects.equals(fromChannel, mapped));
+
+        byte[] truncated = Arrays.copyOf(bytes.toByteArray(), bytes.size() - 1);
+        assertThrows(UncheckedIOException.class, () -> CoordSet.readFrom(Channels.newChannel(new ByteArrayInputStream(truncated))));
+        assertThrows(IllegalArgumentException.class, () -> CoordSet.readFrom(ByteBuffer.allocate(64)));
+    }
+
+    @Test
+    public void morphologyMatchesCoordByCoordDefinition(){
+        Random random = new Random(23);
+        int[][] offsetSets = {{-1,-1, 0,-1, 1,-1, -1,0, 0,0, 1,0, -1,1, 0,1, 1,1}, {0,0, -1,0, 1,0, 0,-1, 0,1, -2,0, 2,0, 0,-2, 0,2},
+                {0,0, 8,-8, -3,5}, {-8,0}};
+        StructuringElement[] elements = {StructuringElement.square(1), StructuringElement.cross(2),
+                StructuringElement.of(offsetSets[2]), StructuringElement.of(offsetSets[3])};
+        for (int i = 0; i < 12; i++) {
+            Integer width = 1 + random.nextInt(60);
+            Integer height = 1 + random.nextInt(60);
+            CoordSet set = i % 3 == 0 ? CoordSet.sparse(width, height) : new CoordSet(width, height);
+            for (int k = 0; k < 15; k++) {
+                Integer x = random.nextInt(width);
+                Integer y = random.nextInt(height);
+                set.add(x, y, Math.min(width - 1, x + random.nextInt(12)), Math.min(height - 1, y + random.nextInt(12)));
+            }
+            for (int e = 0; e < elements.length; e++) {
+                StructuringElement element = elements[e];
+                int[] offsets = offsetSets[e];
+                CoordSet dilated = new CoordSet(width, height);
+                CoordSet eroded = new CoordSet(width, height);
+                for (Integer y = 0; y < height; y++) {
+                    for (Integer x = 0; x < width; x++) {
+                        Boolean any = false;
+                        Boolean all = true;
+                        for (int o = 0; o < offsets.length; o += 2) {
+                            any |= containsWithin(set, x - offsets[o], y - offsets[o + 1]);
+                            all &= containsWithin(set, x + offsets[o], y + offsets[o + 1]);
+                        }
+                        if (any) dilated.add(x, y);
+                        if (all) eroded.add(x, y);
+                    }
+                }
+                assertSameCoords(dilated, CoordSet.dilate(set, element, new CoordSet(width, height)));
+                assertSameCoords(eroded, CoordSet.erode(set, element, CoordSet.sparse(width, height)));
+                assertSameCoords(dilated, set.copy().dilate(element));
+                assertSameCoords(eroded, set.copy().erode(element));
+                assertSameCoords(CoordSet.dilate(eroded, element, new CoordSet(width, height)), set.copy().open(element));
+                assertSameCoords(CoordSet.erode(dilated, element, new CoordSet(width, height)), set.copy().close(element));
+                assertSameCoords(set.copy().open(element), CoordSet.open(set, element, new CoordSet(width, height)));
+            }
+        }
+        assertThrows(IllegalArgumentException.class, () -> StructuringElement.of(9, 0));
+    }
+
+    @Test
+    public void countInRegionMatchesFilteredCount(){
+        Random random = new Random(29);
+        for (int i = 0; i < 20; i++) {
+            Integer width = 1 + random.nextInt(100);
+            Integer height = 1 + random.nextInt(100);
+            CoordSet set = i % 2 == 0 ? new CoordSet(width, height) : CoordSet.sparse(width, height);
+            for (int k = 0; k < width * height / 2; k++) {
+                set.add(random.nextInt(width), random.nextInt(height));
+            }
+            for (int q = 0; q < 200; q++) {
+                Integer x1 = random.nextInt(width);
+                Integer y1 = random.nextInt(height);
+                Integer x2 = x1 + random.nextInt(width - x1);
+                Integer y2 = y1 + random.nextInt(height - y1);
+                Integer expected = set.filter(x1, y1, x2, y2).count();
+                assertEquals(expected, set.countInRegion(x1, y1, x2, y2));
+                assertEquals(expected == 0, set.isEmpty(x1, y1, x2, y2));
+            }
+        }
+    }
+
+    @Test
+    public void countInRegionReflectsChanges(){
+        for (CoordSet set : new CoordSet[]{new CoordSet(100, 100), CoordSet.sparse(100, 100)}) {
+            set.add(10, 10, 19, 19);
+            assertEquals(100, set.countInRegion(0, 0, 99, 99));
+            assertEquals(25, set.countInRegion(15, 15, 30, 30));
+            set.remove(15, 15);
+            assertEquals(24, set.countInRegion(15, 15, 30, 30));
+            set.add(50, 50, 59, 50);
+            assertEquals(10, set.countInRegion(50, 0, 99, 99));
+            CoordSet other = new CoordSet(100, 100);
+            other.add(0, 0, 99, 49);
+            set.andNot(other);
+            assertTrue(set.isEmpty(0, 0, 99, 49));
+            assertEquals(10, set.countInRegion(-5, -5, 200, 200));
+            assertEquals(0, set.countInRegion(60, 60, 40, 40));
+        }
+    }
+
+    @Test
+    public void occupancySkippingScansMatchUnindexedStore(){
+        //wider than 64 * 64 cells, so rows span several summary words
+        Random random = new Random(17);
+        CoordSet heap = new CoordSet(40000, 24);
+        CoordSet sparse = CoordSet.sparse(40000, 24);
+        for (int i = 0; i < 3000; i++) {
+            int x = random.nextInt(40000);
+            int y = random.nextInt(24);
+            if (i % 4 == 3) {
+                heap.remove(x, y);
+                sparse.remove(x, y);
+            } else {
+                heap.add(x, y);
+                sparse.add(x, y);
+            }
+        }
+        heap.remove(0, 0, 20000, 7);
+        sparse.remove(0, 0, 20000, 7);
+        assertArrayEquals(sparse.coords().sorted().toArray(), heap.coords().sorted().toArray());
+        assertEquals(sparse.countInRegion(4000, 3, 36000, 20), heap.countInRegion(4000, 3, 36000, 20));
+
+        CoordSet copy = new CoordSet(40000, 24);
+        sparse.forEach(copy::add);
+        assertEquals(heap, copy);
+        copy.add(39999, 23);
+        assertNotEquals(heap, copy);
+        copy.remove(39999, 23);
+        copy.add(0, 0);
+        assertNotEquals(heap, copy);
+
+        StructuringElement element = StructuringElement.square(1);
+        assertArrayEquals(CoordSet.dilate(sparse, element, CoordSet.sparse(40000, 24)).coords().sorted().toArray(),
+                CoordSet.dilate(heap, element, new CoordSet(40000, 24)).coords().sorted().toArray());
+        CoordSet block = new CoordSet(40000, 24);
+        block.add(30000, 0, 30100, 23);
+        block.add(100, 16, 200, 23);
+        assertEquals(99 * 22 + 99 * 6,
+                CoordSet.erode(block, element, new CoordSet(40000, 24)).count());
+        assertEquals(sparse.count(), heap.count());
+        assertEquals(sparse.xor(copy).count(), heap.xor(copy).count());
+    }
+
+    @Test
+    public void nextAndPrevSearchMatchesScan(){
+        Random random = new Random(18);
+        CoordSet set = new CoordSet(45, 29);
+        for (int i = 0; i < 150; i++) {
+            set.add(random.nextInt(45), random.nextInt(29));
+        }
+        set.add(0, 20, 44, 20);
+        set.remove(0, 3, 44, 3);
+        for (int y = -1; y <= 29; y++) {
+            for (int x = -1; x <= 45; x++) {
+                assertEquals(scan(set, x, y, 1, 0, true), set.nextSetX(x, y), "nextSetX "+x+","+y);
+                assertEquals(scan(set, x, y, -1, 0, true), set.prevSetX(x, y), "prevSetX "+x+","+y);
+                assertEquals(scan(set, x, y, 0, 1, true), set.nextSetY(x, y), "nextSetY "+x+","+y);
+                assertEquals(scan(set, x, y, 0, -1, true), set.prevSetY(x, y), "prevSetY "+x+","+y);
+                assertEquals(scan(set, x, y, 1, 0, false), set.nextClearX(x, y), "nextClearX "+x+","+y);
+                assertEquals(scan(set, x, y, -1, 0, false), set.prevClearX(x, y), "prevClearX "+x+","+y);
+                assertEquals(scan(set, x, y, 0, 1, false), set.nextClearY(x, y), "nextClearY "+x+","+y);
+                assertEquals(scan(set, x, y, 0, -1, false), set.prevClearY(x, y), "prevClearY "+x+","+y);
+            }
+        }
+        assertEquals(-1, set.nextSetX(0, 3));
+        assertEquals(-1, set.nextClearX(0, 20));
+        assertEquals(44, set.prevSetX(100, 20));
+    }
+
+    //steps from the clamped start until a coord of the given state is found, returning the x or y stepped along
+    private Integer scan(CoordSet set, int x, int y, int dx, int dy, boolean state) {
+        int cx = dx > 0 ? Math.max(x, 0) : dx < 0 ? Math.min(x, set.getWidth() - 1) : x;
+        int cy = dy > 0 ? Math.max(y, 0) : dy < 0 ? Math.min(y, set.getHeight() - 1) : y;
+        if (cx < 0 || cy < 0 || cx >= set.getWidth() || cy >= set.getHeight()) {
+            return -1;
+        }
+        while (cx >= 0 && cy >= 0 && cx < set.getWidth() && cy < set.getHeight()) {
+            if (set.contains(cx, cy) == state) {
+                return dx != 0 ? cx : cy;
+            }
+            cx += dx;
+            cy += dy;
+        }
+        return -1;
+    }
+
+    private Boolean containsWithin(CoordSet set, Integer x, Integer y) {
+        return x >= 0 && y >= 0 && x < set.getWidth() && y < set.getHeight() && set.contains(x, y);
+    }
+
     private void forAllCoordsIn(Point upperLeft, Point lowerRight, BiConsumer<CoordSet, Point> action) {
         for (int x = upperLeft.x; x<= lowerRight.x; x++){
             for (int y= upperLeft.y; y<= lowerRight.y; y++){
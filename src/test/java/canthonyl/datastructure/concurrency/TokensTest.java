@@ -5,10 +5,26 @@ import canthonyl.fixture.FixedClock;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.lang.management.ManagementFactory;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.LongStream;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class TokensTest {
 
@@ -554,6 +570,254 @@ public class TokensTest {
         assertEquals(13L, tokens.reserve());
     }
 
+    @Test
+    public void concurrentReservationsClaimEachTokenOnce() throws Exception {
+        Tokens tokens = new Tokens(clock, 1000L, 5L, TimeUnit.MILLISECONDS);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Long>> claimed = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                claimed.add(executor.submit(() -> LongStream.range(0, 500).filter(i -> tokens.reserve() == 0L).count()));
+            }
+            long total = 0L;
+            for (Future<Long> future : claimed) {
+                total += future.get();
+            }
+            assertEquals(1000L, total);
+            assertEquals(5L, tokens.nextAvailableTimestamp());
+            assertEquals(5L, tokens.reserve());
+
+            clock.advanceMillis(5);
+            List<Future<Long>> acquired = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                acquired.add(executor.submit(() -> LongStream.range(0, 500).filter(i -> tokens.get()).count()));
+            }
+            total = 0L;
+            for (Future<Long> future : acquired) {
+                total += future.get();
+            }
+            assertEquals(1000L, total);
+            assertEquals(false, tokens.get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void primitiveReserveDoesNotAllocate(){
+        Tokens tokens = new Tokens(clock, 4L, 5L, TimeUnit.MILLISECONDS);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long sum = 0L;
+        for (int i = 0; i < 200_000; i++) {
+            sum += tokens.reserve(0) + tokens.nextAvailableTimestamp() + tokens.availableTokensAfter(i);
+            clock.advanceMillis(1);
+        }
+        long before = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        for (int i = 0; i < 1_000_000; i++) {
+            sum += tokens.reserve(0) + (tokens.get(0) ? 1 : 0);
+        }
+        long allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+        assertTrue(sum > 0L);
+        assertTrue(allocated < 1_000_000L, allocated + " bytes allocated");
+    }
+
+    @Test
+    public void gcraSpacesTokensEvenlyOverWindow(){
+        Tokens tokens = new Tokens(clock, 3L, 6L, TimeUnit.MILLISECONDS, Tokens.Mode.GCRA);
+        assertEquals(3L, tokens.availableTokensAfter(0L));
+        //burst of all tokens
+        assertEquals(0L, tokens.reserve());
+        assertEquals(0L, tokens.reserve());
+        assertEquals(0L, tokens.reserve());
+        assertEquals(0L, tokens.availableTokensAfter(1L));
+        assertEquals(1L, tokens.availableTokensAfter(2L));
+        assertEquals(3L, tokens.availableTokensAfter(6L));
+
+        //one token frees up every 2 millis
+        assertEquals(2L, tokens.nextAvailableTimestamp());
+        assertEquals(2L, tokens.reserve());
+        assertEquals(4L, tokens.reserve());
+        assertEquals(6L, tokens.reserve());
+        assertEquals(6L, tokens.reserve());
+        assertEquals(false, tokens.get());
+
+        clock.advanceMillis(2);
+        assertEquals(0L, tokens.reserve());
+        assertEquals(4L, tokens.reserve());
+        clock.advanceMillis(1);
+        assertEquals(4L, tokens.nextAvailableTimestamp());
+        clock.advanceMillis(1);
+        assertEquals(true, tokens.get());
+        assertEquals(6L, tokens.nextAvailableTimestamp());
+    }
+
+    @Test
+    public void gcraKeepsMultiLevelContract(){
+        Tokens tokens = new Tokens(clock, 10L, TimeUnit.MILLISECONDS, Tokens.Mode.GCRA, new long[]{2L, 1L});
+        assertEquals(0L, tokens.reserve(1));
+        assertEquals(10L, tokens.reserve(1));
+        assertEquals(0L, tokens.reserve(0));
+        assertEquals(0L, tokens.reserve(0));
+        assertEquals(5L, tokens.reserve(0));
+        assertEquals(5L, tokens.nextAvailableTimestamp(0));
+        assertEquals(10L, tokens.nextAvailableTimestamp(1));
+        assertEquals(Tokens.Mode.GCRA, tokens.withOffset(5L).getMode());
+
+        tokens.reserveAll(0L);
+        assertEquals(0L, tokens.availableTokensAfter(4L));
+        assertEquals(1L, tokens.availableTokensAfter(5L));
+        assertEquals(3L, tokens.availableTokensAfter(10L));
+    }
+
+    @Test
+    public void gcraHandlesLargeTokenCounts(){
+        Tokens tokens = new Tokens(clock, 1_000_000L, 60_000L, TimeUnit.MILLISECONDS, Tokens.Mode.GCRA);
+        for (int i = 0; i < 1_000_000; i++) {
+            assertEquals(0L, tokens.reserve());
+        }
+        assertEquals(1L, tokens.reserve());
+        clock.advanceMillis(1);
+        assertEquals(16L, tokens.availableTokensAfter(1L));
+    }
+
+    @Test
+    public void availableTokensAfterSearchesRotatedRing(){
+        Tokens tokens = new Tokens(clock, 1000L, 1000L, TimeUnit.MILLISECONDS);
+        for (int t = 0; t < 1500; t++) {
+            assertEquals(0L, tokens.reserve());
+            clock.advanceMillis(1);
+        }
+        //slots hold 500 to 1499 starting after the index
+        assertEquals(0L, tokens.availableTokensAfter(1499L));
+        for (long t = 1500L; t < 2499L; t++) {
+            assertEquals(t - 1499L, tokens.availableTokensAfter(t));
+        }
+        assertEquals(1000L, tokens.availableTokensAfter(2499L));
+        assertEquals(1500L, tokens.nextAvailableTimestamp());
+    }
+
+    @Test
+    public void acquireParksUntilTokenFreesUp() throws Exception {
+        Tokens tokens = new Tokens(Clock.systemUTC(), 2L, 200L, TimeUnit.MILLISECONDS);
+        long start = System.nanoTime();
+        tokens.acquire();
+        tokens.acquire();
+        tokens.acquire();
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 150L);
+        //the other token taken at the start has freed up as well
+        assertTrue(tokens.acquire(0, 20L, TimeUnit.MILLISECONDS));
+        assertFalse(tokens.acquire(0, 20L, TimeUnit.MILLISECONDS));
+        assertTrue(tokens.acquire(0, 1L, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void acquireWakesWaitersInArrivalOrder() throws Exception {
+        Tokens tokens = new Tokens(Clock.systemUTC(), 1L, 30L, TimeUnit.MILLISECONDS);
+        tokens.acquire();
+        List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            int id = i;
+            Thread thread = new Thread(() -> {
+                tokens.acquire();
+                order.add(id);
+            });
+            thread.start();
+            awaitParked(thread);
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join(5000L);
+        }
+        assertEquals(Arrays.asList(0, 1, 2, 3), order);
+    }
+
+    @Test
+    public void acquireInterruptiblyThrowsWhenInterrupted() throws Exception {
+        Tokens tokens = new Tokens(Clock.systemUTC(), 1L, 60_000L, TimeUnit.MILLISECONDS);
+        tokens.acquire();
+        AtomicBoolean interrupted = new AtomicBoolean();
+        Thread thread = new Thread(() -> {
+            try {
+                tokens.acquireInterruptibly();
+            } catch (InterruptedException e) {
+                interrupted.set(true);
+            }
+        });
+        thread.start();
+        awaitParked(thread);
+        thread.interrupt();
+        thread.join(5000L);
+        assertTrue(interrupted.get());
+    }
+
+    @Test
+    public void acquireAsyncCompletesInArrivalOrderAsTokensFreeUp() throws Exception {
+        Tokens tokens = new Tokens(Clock.systemUTC(), 2L, 200L, TimeUnit.MILLISECONDS);
+        long start = System.currentTimeMillis();
+        List<Integer> completed = new CopyOnWriteArrayList<>();
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i=0; i<6; i++) {
+            int id = i;
+            futures.add(tokens.acquireAsync().thenRun(() -> completed.add(id)));
+        }
+        assertEquals(Arrays.asList(0, 1), completed);
+
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(5, TimeUnit.SECONDS);
+        assertTrue(System.currentTimeMillis() - start >= 400L);
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5), completed);
+    }
+
+    @Test
+    public void acquireAsyncCompletesQueuedWaitersOnExecutor() throws Exception {
+        Tokens tokens = new Tokens(Clock.systemUTC(), 1L, 100L, TimeUnit.MILLISECONDS);
+        tokens.acquireAsync().get();
+
+        List<String> threadNames = new CopyOnWriteArrayList<>();
+        tokens.acquireAsync().thenRun(() -> threadNames.add(Thread.currentThread().getName())).get(5, TimeUnit.SECONDS);
+        assertFalse(threadNames.contains("timing-wheel"));
+
+        ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "async-acquirer"));
+        try {
+            tokens.acquireAsync(0, executor).thenRun(() -> threadNames.add(Thread.currentThread().getName())).get(5, TimeUnit.SECONDS);
+            assertEquals("async-acquirer", threadNames.get(1));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void acquireAsyncSkipsCancelledWaiters() throws Exception {
+        Tokens tokens = new Tokens(Clock.systemUTC(), 1L, 100L, TimeUnit.MILLISECONDS);
+        tokens.acquireAsync().get();
+        CompletableFuture<Void> cancelled = tokens.acquireAsync();
+        CompletableFuture<Void> next = tokens.acquireAsync();
+        assertTrue(cancelled.cancel(false));
+
+        next.get(5, TimeUnit.SECONDS);
+        assertFalse(tokens.get(0));
+    }
+
+    @Test
+    public void acquireAsyncGrantsManyPendingWaiters() throws Exception {
+        int numTokens = 20_000;
+        Tokens tokens = new Tokens(Clock.systemUTC(), numTokens, 300L, TimeUnit.MILLISECONDS);
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i=0; i<3 * numTokens; i++) {
+            futures.add(tokens.acquireAsync());
+        }
+        assertTrue(futures.stream().filter(CompletableFuture::isDone).count() <= numTokens);
+
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(10, TimeUnit.SECONDS);
+    }
+
+    private void awaitParked(Thread thread) throws InterruptedException {
+        Set<Thread.State> parkedOrDone = EnumSet.of(Thread.State.WAITING, Thread.State.TIMED_WAITING, Thread.State.TERMINATED);
+        while (!parkedOrDone.contains(thread.getState())) {
+            Thread.sleep(1L);
+        }
+    }
+
     private Long callReserveToken(long numTimes, Tokens tokens) {
         return LongStream.range(0, numTimes).boxed().map(i -> tokens.nextAvailableTimestamp()).reduce(Long::sum).get();
     }